@@ -14,15 +14,24 @@
  */
 package org.javastack.chainmq;
 
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
 /**
  * AsyncTask
  * 
+ * A task is done once (response sent, timed out or cancelled); the first {@link #taskMarkDone()}
+ * wins and cancels the timeout. Timeouts run in the event loop of the client.
+ * 
  * @author Guillermo Grandes / guillermo.grandes[at]gmail.com
  */
-public class AsyncTask {
+public class AsyncTask extends TimerNode {
+	private static final AtomicIntegerFieldUpdater<AsyncTask> doneUpdater = AtomicIntegerFieldUpdater
+			.newUpdater(AsyncTask.class, "done");
 	final long sequence;
 	final ClientHandler clientHandler;
 	final AsyncTaskTracker tracker;
+	private volatile int done = 0;
+	private volatile boolean timed = false;
 
 	public AsyncTask(final long sequence, final ClientHandler clientHandler) {
 		this.sequence = sequence;
@@ -33,10 +42,14 @@ public class AsyncTask {
 	/**
 	 * Mark Task as done
 	 * 
-	 * @return
+	 * @return true if task changed from pending to done
 	 */
 	public final boolean taskMarkDone() {
-		return tracker.ackPendingId(sequence);
+		if (!doneUpdater.compareAndSet(this, 0, 1))
+			return false;
+		if (timed)
+			tracker.cancel(this);
+		return true;
 	}
 
 	/**
@@ -45,6 +58,17 @@ public class AsyncTask {
 	 * @return
 	 */
 	public final boolean taskIsDone() {
-		return !tracker.checkPendingId(sequence);
+		return (done != 0);
+	}
+
+	final void setTimed() {
+		timed = true;
+	}
+
+	/**
+	 * Timeout reached (in event loop thread)
+	 */
+	@Override
+	protected void expire(final long now) {
 	}
 }
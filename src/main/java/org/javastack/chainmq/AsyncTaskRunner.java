@@ -15,7 +15,7 @@
 package org.javastack.chainmq;
 
 /**
- * AsyncTask Runnable
+ * AsyncTask Runnable (runs when its delay expires)
  * 
  * @author Guillermo Grandes / guillermo.grandes[at]gmail.com
  */
@@ -24,6 +24,11 @@ public abstract class AsyncTaskRunner extends AsyncTask implements Runnable {
 		super(sequence, clientHandler);
 	}
 
+	@Override
+	protected final void expire(final long now) {
+		run();
+	}
+
 	@Override
 	public final void run() {
 		if (taskIsDone())
@@ -14,29 +14,34 @@
  */
 package org.javastack.chainmq;
 
-import java.util.HashSet;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import org.apache.log4j.Logger;
 
 /**
- * AsyncTask Tracker
+ * AsyncTask Tracker (one per event loop)
+ * 
+ * Timeouts of tasks live in a {@link TimingWheel} owned by the loop thread: schedule and cancel are
+ * O(1) and expired tasks run in the loop, driven by the select timeout. Cancels from other threads
+ * (reserve served by a put in other loop) are queued to the loop.
  * 
  * @author Guillermo Grandes / guillermo.grandes[at]gmail.com
  */
 public class AsyncTaskTracker {
 	private static final Logger log = Logger.getLogger(AsyncTaskTracker.class);
-	private final ScheduledExecutorService threadSchedPool; // Executors.newScheduledThreadPool(4);
+	private final EventLoop loop;
 	private final SequenceNumber seqReq = new SequenceNumber();
-	private final HashSet<Long> seqAckPending = new HashSet<Long>();
-	
-	public AsyncTaskTracker(final ScheduledExecutorService threadSchedPool) {
-		this.threadSchedPool = threadSchedPool;
+	private final TimingWheel wheel = new TimingWheel(System.currentTimeMillis());
+	private final ConcurrentLinkedQueue<AsyncTask> pendingCancel = new ConcurrentLinkedQueue<AsyncTask>();
+	private final ArrayList<TimerNode> expired = new ArrayList<TimerNode>();
+
+	public AsyncTaskTracker(final EventLoop loop) {
+		this.loop = loop;
 	}
 
 	/**
-	 * Generate new task id and mark pending state
+	 * Generate new task id
 	 * 
 	 * @return id
 	 */
@@ -44,49 +49,72 @@ public class AsyncTaskTracker {
 		final long id = seqReq.nextLong();
 		if (log.isDebugEnabled())
 			log.debug("new task id=" + id);
-		seqAckPending.add(Long.valueOf(id));
 		return id;
 	}
 
 	/**
-	 * Check if task is pending
+	 * Submit task for async processing (from loop thread)
 	 * 
-	 * @param id
-	 * @return
+	 * @param task
+	 * @param delay time in millis
 	 */
-	public boolean checkPendingId(final long id) {
-		final boolean ret = seqAckPending.contains(Long.valueOf(id));
+	public void submitAsyncTask(final AsyncTask task, final long delay) {
 		if (log.isDebugEnabled())
-			log.debug("checkPendingId id=" + id + " ret=" + ret);
-		return ret;
+			log.debug("submitAsyncTask id=" + task.sequence + " delay=" + delay);
+		task.setTimed();
+		wheel.add(task, System.currentTimeMillis() + delay);
 	}
 
 	/**
-	 * Mark Task as Done
+	 * Cancel timeout of task
 	 * 
-	 * @param id
-	 * @return true if task changed from pending to ack
+	 * @param task
 	 */
-	public boolean ackPendingId(final long id) {
-		final boolean ret = seqAckPending.remove(Long.valueOf(id));
-		if (log.isDebugEnabled())
-			log.debug("ackPendingId id=" + id + " ret=" + ret);
-		return ret;
+	void cancel(final AsyncTask task) {
+		if (loop.inLoop()) {
+			wheel.remove(task);
+		} else {
+			pendingCancel.offer(task);
+		}
 	}
 
 	/**
-	 * Submit task for async processing
+	 * Millis until next timeout (for select)
 	 * 
-	 * @param task
-	 * @param delay time in millis
+	 * @param now
+	 * @param max
+	 * @return millis (at least 1)
 	 */
-	public void submitAsyncTask(final AsyncTaskRunner task, final long delay) {
-		if (log.isDebugEnabled())
-			log.debug("submitAsyncTask id=" + task.sequence + " delay=" + delay);
-		threadSchedPool.schedule(task, delay, TimeUnit.MILLISECONDS);
+	long nextTimeout(final long now, final long max) {
+		final long next = wheel.nextDeadline();
+		if (next == Long.MAX_VALUE)
+			return max;
+		return Math.max(1, Math.min(max, next - now));
+	}
+
+	/**
+	 * Run expired tasks (in loop thread)
+	 * 
+	 * @param now
+	 */
+	void runExpired(final long now) {
+		AsyncTask task = null;
+		while ((task = pendingCancel.poll()) != null) {
+			wheel.remove(task);
+		}
+		wheel.advance(now, expired);
+		for (int i = 0; i < expired.size(); i++) {
+			final TimerNode node = expired.get(i);
+			try {
+				node.expire(now);
+			} catch (Exception e) {
+				log.error("Exception: " + e.toString(), e);
+			}
+		}
+		expired.clear();
 	}
 
 	public void dumpStats() {
-		 log.info("dumpStats() pending taskAck=" + seqAckPending.size());
+		log.info("dumpStats() pending timeouts=" + wheel.size());
 	}
 }
@@ -0,0 +1,938 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.javastack.chainmq;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Write-ahead log of job changes (put, release, bury, kick, delete), replayed on startup like the
+ * beanstalkd binlog. Reservations are not logged: recovered jobs are ready, delayed or buried.
+ * 
+ * The log is a sequence of fixed-size segment files (binlog.N) mapped in memory. Records are
+ * stored in the current segment by the threads changing jobs (under the job lock, so records of
+ * a job are in order) and one writer thread syncs them: everything stored while the previous
+ * fsync was running goes in the next one (group commit). The writer also prepares the next
+ * segment in advance. Fsync policy:
+ * <ul>
+ * <li>always (0 ms): responses to clients are held until their records are on disk
+ * <li>every N ms: records are synced in background (a system crash loses up to N ms)
+ * <li>never (-1): left to the operating system
+ * </ul>
+ * 
+ * Segments are deleted from the oldest, once all jobs put in them are deleted. A compactor thread
+ * writes the live jobs of the oldest segment again (as put records at the head of the log) when
+ * the log holds more dead records than live ones, so disk usage follows the live jobs. Record
+ * format:
+ * 
+ * <pre>
+ * [length:4][crc32:4][type:1][id:8][fields of type]
+ * </pre>
+ * 
+ * @author Guillermo Grandes / guillermo.grandes[at]gmail.com
+ */
+public final class Binlog implements Runnable {
+	private static final Logger log = Logger.getLogger(Binlog.class);
+	private static final Binlog singleton = new Binlog();
+	public static final int DEFAULT_FSYNC_MILLIS = 50;
+	public static final int FSYNC_NEVER = -1;
+	public static final long DEFAULT_MAX_FILE_SIZE = 10 * 1024 * 1024;
+	public static final String FILE_PREFIX = "binlog.";
+	private static final int MAGIC = 0x434D5142; // CMQB
+	private static final int VERSION = 1;
+	private static final int FILE_HEADER = 8; // magic + version
+	private static final int FRAME_HEADER = 8; // length + crc
+	private static final int PUT_SIZE = FRAME_HEADER + 1 + 8 + 4 + 4 + 8 + 8 + 2 + 4; // without name and body
+	private static final long COMPACT_INTERVAL = 1000; // millis
+	static final byte REC_PUT = 1; // prio, ttr, created, readyTime (0 if ready), tube, body
+	static final byte REC_RELEASE = 2; // prio, readyTime (0 if ready)
+	static final byte REC_BURY = 3; // prio
+	static final byte REC_KICK = 4;
+	static final byte REC_DELETE = 5;
+	// Config
+	private volatile File directory = null;
+	private volatile int fsyncMillis = DEFAULT_FSYNC_MILLIS;
+	private volatile long maxFileSize = DEFAULT_MAX_FILE_SIZE;
+	// Append side (guarded by this)
+	private final CRC32 crc = new CRC32();
+	private final ArrayList<Segment> segments = new ArrayList<Segment>(); // oldest first, last is current
+	private Segment next = null; // prepared by writer
+	private ByteBuffer record = ByteBuffer.allocate(4096); // record being built (checksum)
+	private long recordsWritten = 0;
+	private long recordsMigrated = 0;
+	private volatile long appendedLsn = 0; // written under lock
+	private long forcedLsn = 0;
+	private int unforcedIndex = 0; // first segment with records not synced
+	private boolean forceRequested = false;
+	private boolean writerIdle = false;
+	private boolean closed = false;
+	private volatile boolean enabled = false;
+	// Writer side
+	private final ConcurrentLinkedQueue<ClientHandler> syncWaiters = new ConcurrentLinkedQueue<ClientHandler>();
+	private volatile long syncedLsn = 0;
+	private volatile long fsyncs = 0;
+	private Thread writer = null;
+
+	public static Binlog getInstance() {
+		return singleton;
+	}
+
+	/**
+	 * Directory of binlog files (null disable)
+	 * 
+	 * @param directory
+	 */
+	public void setDirectory(final String directory) {
+		this.directory = ((directory == null) ? null : new File(directory));
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Fsync policy
+	 * 
+	 * @param fsyncMillis 0 always (before responses), N every N ms at most, -1 never
+	 */
+	public void setFsyncMillis(final int fsyncMillis) {
+		this.fsyncMillis = Math.max(FSYNC_NEVER, fsyncMillis);
+	}
+
+	public int getFsyncMillis() {
+		return fsyncMillis;
+	}
+
+	/**
+	 * Size of segment files (a record bigger than this gets a segment of its own)
+	 * 
+	 * @param maxFileSize bytes
+	 */
+	public void setMaxFileSize(final long maxFileSize) {
+		this.maxFileSize = Math.min(Integer.MAX_VALUE, Math.max(4096, maxFileSize));
+	}
+
+	public long getMaxFileSize() {
+		return maxFileSize;
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Responses must wait for records to be on disk (fsync always)
+	 * 
+	 * @return
+	 */
+	public boolean isSyncRequired() {
+		return enabled && (fsyncMillis == 0);
+	}
+
+	/**
+	 * Sequence number of last appended record
+	 * 
+	 * @return
+	 */
+	public long getAppendedLsn() {
+		return appendedLsn;
+	}
+
+	/**
+	 * Sequence number of last record on disk
+	 * 
+	 * @return
+	 */
+	public long getSyncedLsn() {
+		return syncedLsn;
+	}
+
+	public synchronized int getOldestIndex() {
+		return (segments.isEmpty() ? 0 : segments.get(0).index);
+	}
+
+	public synchronized int getCurrentIndex() {
+		return (segments.isEmpty() ? 0 : current().index);
+	}
+
+	public synchronized long getRecordsWritten() {
+		return recordsWritten;
+	}
+
+	public synchronized long getRecordsMigrated() {
+		return recordsMigrated;
+	}
+
+	public long getFsyncs() {
+		return fsyncs;
+	}
+
+	/**
+	 * Replay existing segments, start writer and compactor
+	 * 
+	 * @throws IOException
+	 */
+	public void open() throws IOException {
+		final File dir = directory;
+		if (dir == null)
+			return;
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Unable to create binlog directory: " + dir);
+		final int[] old = listIndexes(dir);
+		final int index = ((old.length == 0) ? 1 : (old[old.length - 1] + 1));
+		final Segment head = createSegment(index, maxFileSize);
+		synchronized (this) {
+			if (old.length > 0) {
+				for (int i = old[0]; i < index; i++) {
+					segments.add(new Segment(i));
+				}
+			}
+			segments.add(head);
+			unforcedIndex = index;
+		}
+		enabled = true;
+		if (old.length > 0) {
+			final long begin = System.currentTimeMillis();
+			final int jobs = replay(dir);
+			synchronized (this) {
+				deleteUnusedSegments();
+			}
+			log.info("Binlog recovered " + jobs + " jobs from " + old.length + " files in "
+					+ (System.currentTimeMillis() - begin) + "ms");
+		}
+		writer = new Thread(this, "BinlogWriter");
+		writer.setDaemon(true);
+		writer.start();
+		final Thread compactor = new Thread(new Compactor(), "BinlogCompactor");
+		compactor.setDaemon(true);
+		compactor.start();
+		log.info("Binlog " + getFile(dir, index) + " fsync="
+				+ ((fsyncMillis < 0) ? "never" : (fsyncMillis == 0) ? "always" : (fsyncMillis + "ms")));
+	}
+
+	/**
+	 * Sync pending records, stop writer
+	 */
+	public void close() {
+		final Thread t;
+		synchronized (this) {
+			if (!enabled || closed)
+				return;
+			closed = true;
+			notifyAll();
+			t = writer;
+		}
+		try {
+			t.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Wait until all appended records are on disk
+	 */
+	public void sync() {
+		synchronized (this) {
+			final long lsn = appendedLsn;
+			forceRequested = true;
+			notifyAll();
+			try {
+				while ((forcedLsn < lsn) && !closed)
+					wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Notify client when records up to lsn are synced (once per call)
+	 * 
+	 * @param cli
+	 * @param lsn
+	 */
+	void awaitSync(final ClientHandler cli, final long lsn) {
+		syncWaiters.offer(cli);
+		if (syncedLsn >= lsn) // Writer can be done before offer
+			wakeWaiters();
+	}
+
+	private void wakeWaiters() {
+		ClientHandler cli = null;
+		while ((cli = syncWaiters.poll()) != null) {
+			cli.binlogSynced();
+		}
+	}
+
+	// ------------ Records (called with job locked)
+
+	void put(final Job job) {
+		if (!enabled)
+			return;
+		synchronized (this) {
+			if (writePut(job, job.readyTime)) {
+				final Segment s = current();
+				s.live++;
+				s.liveBytes += putSize(job);
+				job.binlogFile = s.index;
+			}
+		}
+	}
+
+	void release(final Job job) {
+		if (!enabled)
+			return;
+		synchronized (this) {
+			final ByteBuffer b = beginRecord(1 + 8 + 4 + 8);
+			if (b == null)
+				return;
+			b.put(REC_RELEASE).putLong(job.id).putInt((int) job.prio);
+			b.putLong((job.state == Job.JobState.DELAYED) ? job.readyTime : 0);
+			endRecord(b);
+		}
+	}
+
+	void bury(final Job job) {
+		if (!enabled)
+			return;
+		synchronized (this) {
+			writeBury(job);
+		}
+	}
+
+	void kick(final Job job) {
+		if (!enabled)
+			return;
+		synchronized (this) {
+			writeSimple(REC_KICK, job);
+		}
+	}
+
+	void delete(final Job job) {
+		if (!enabled)
+			return;
+		synchronized (this) {
+			writeSimple(REC_DELETE, job);
+			releaseJob(job);
+		}
+	}
+
+	/**
+	 * Write job again at head of log (compaction), with its current state
+	 * 
+	 * @param job
+	 * @param index segment being compacted
+	 */
+	void migrate(final Job job, final int index) {
+		if (!enabled)
+			return;
+		synchronized (this) {
+			if (job.binlogFile != index)
+				return;
+			final long readyTime = ((job.state == Job.JobState.DELAYED) ? job.readyTime : 0);
+			if (!writePut(job, readyTime))
+				return;
+			if (job.state == Job.JobState.BURIED)
+				writeBury(job);
+			releaseJob(job);
+			final Segment s = current();
+			s.live++;
+			s.liveBytes += putSize(job);
+			job.binlogFile = s.index;
+			recordsMigrated++;
+		}
+	}
+
+	private boolean writePut(final Job job, final long readyTime) {
+		final String tubeName = job.tube.getName();
+		final int nameLen = tubeName.length();
+		final ByteBuffer b = beginRecord(putSize(job) - FRAME_HEADER);
+		if (b == null)
+			return false;
+		b.put(REC_PUT).putLong(job.id).putInt((int) job.prio).putInt((int) job.getTtr());
+		b.putLong(job.created).putLong(readyTime);
+		b.putShort((short) nameLen);
+		for (int i = 0; i < nameLen; i++) {
+			b.put((byte) tubeName.charAt(i)); // names are ASCII (checked by protocol)
+		}
+		b.putInt(job.bodyLength);
+		if (job.bodyRef >= 0) {
+			b.put(SlabBodyStore.getInstance().buffer(job.bodyRef, job.bodyLength));
+		} else {
+			b.put(job.body, 0, job.bodyLength);
+		}
+		endRecord(b);
+		return true;
+	}
+
+	private void writeBury(final Job job) {
+		final ByteBuffer b = beginRecord(1 + 8 + 4);
+		if (b == null)
+			return;
+		b.put(REC_BURY).putLong(job.id).putInt((int) job.prio);
+		endRecord(b);
+	}
+
+	private void writeSimple(final byte type, final Job job) {
+		final ByteBuffer b = beginRecord(1 + 8);
+		if (b == null)
+			return;
+		b.put(type).putLong(job.id);
+		endRecord(b);
+	}
+
+	private static int putSize(final Job job) {
+		return PUT_SIZE + job.tube.getName().length() + job.bodyLength;
+	}
+
+	/**
+	 * Put record of job is no longer needed (called with lock, after writing the record that
+	 * replaces it)
+	 * 
+	 * @param job
+	 */
+	private void releaseJob(final Job job) {
+		final Segment s = getSegment(job.binlogFile);
+		if (s == null)
+			return;
+		s.live--;
+		s.liveBytes -= putSize(job);
+		s.releaseLsn = appendedLsn;
+	}
+
+	private Segment current() {
+		return segments.get(segments.size() - 1);
+	}
+
+	private Segment getSegment(final int index) {
+		if (segments.isEmpty())
+			return null;
+		final int i = index - segments.get(0).index;
+		return (((i >= 0) && (i < segments.size())) ? segments.get(i) : null);
+	}
+
+	/**
+	 * Begin record (called with lock)
+	 * 
+	 * @param len bytes of record (without frame header)
+	 * @return buffer positioned at record or null if closed
+	 */
+	private ByteBuffer beginRecord(final int len) {
+		if (closed)
+			return null;
+		if (record.capacity() < (FRAME_HEADER + len))
+			record = ByteBuffer.allocate(FRAME_HEADER + len);
+		record.clear();
+		record.position(FRAME_HEADER);
+		return record;
+	}
+
+	/**
+	 * Fill frame header and store record in current segment (called with lock). The checksum is
+	 * calculated on the heap copy, CRC32 can't read a mapped buffer in Java 6.
+	 * 
+	 * @param b
+	 */
+	private void endRecord(final ByteBuffer b) {
+		final int len = b.position() - FRAME_HEADER;
+		crc.reset();
+		crc.update(b.array(), FRAME_HEADER, len);
+		b.putInt(0, len);
+		b.putInt(4, (int) crc.getValue());
+		b.flip();
+		Segment s = current();
+		if (s.map.remaining() < b.remaining())
+			s = rotate(b.remaining());
+		s.map.put(b);
+		s.bytes = s.map.position();
+		recordsWritten++;
+		appendedLsn++;
+		// Writer waits without timeout while all records are synced: wake it on first new one
+		if (writerIdle && ((fsyncMillis == 0) || (appendedLsn == (forcedLsn + 1))))
+			notifyAll();
+	}
+
+	/**
+	 * Current segment is full, continue in next (called with lock)
+	 * 
+	 * @param need bytes of record
+	 * @return
+	 */
+	private Segment rotate(final int need) {
+		final int index = current().index + 1;
+		Segment s = next;
+		next = null;
+		while ((s == null) || (s.index != index) || (s.map.remaining() < need)) {
+			try {
+				s = createSegment(index, Math.max(maxFileSize, FILE_HEADER + need));
+			} catch (IOException e) {
+				log.error("Binlog segment error (retry in 1s): " + e.toString(), e);
+				s = null;
+				try {
+					Thread.sleep(1000); // Holding lock: changes of jobs wait for disk
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+		segments.add(s);
+		notifyAll(); // Writer prepares next
+		return s;
+	}
+
+	// ------------ Writer
+
+	@Override
+	public void run() {
+		long lastSync = System.currentTimeMillis();
+		final ArrayList<MappedByteBuffer> dirty = new ArrayList<MappedByteBuffer>();
+		while (true) {
+			final int policy = fsyncMillis;
+			final long lsn;
+			final int currentIndex;
+			final boolean stop;
+			int prepare = -1;
+			synchronized (this) {
+				try {
+					writerIdle = true;
+					while (!closed && !forceRequested && (next != null)) {
+						if ((appendedLsn > forcedLsn) && (policy >= 0)) {
+							if (policy == 0)
+								break;
+							final long wait = (lastSync + policy - System.currentTimeMillis());
+							if (wait <= 0)
+								break;
+							wait(wait);
+						} else {
+							wait();
+						}
+					}
+				} catch (InterruptedException e) {
+					closed = true;
+				} finally {
+					writerIdle = false;
+				}
+				stop = closed;
+				lsn = appendedLsn;
+				currentIndex = current().index;
+				final boolean due = (forceRequested || closed || (policy == 0) || ((policy > 0) && ((System
+						.currentTimeMillis() - lastSync) >= policy)));
+				forceRequested = false;
+				if ((lsn > forcedLsn) && due) {
+					for (int i = unforcedIndex; i <= currentIndex; i++) {
+						final Segment s = getSegment(i);
+						if ((s != null) && (s.map != null))
+							dirty.add(s.map);
+					}
+				}
+				if (next == null)
+					prepare = currentIndex + 1;
+			}
+			if (!dirty.isEmpty()) {
+				for (final MappedByteBuffer map : dirty) {
+					map.force();
+				}
+				fsyncs++;
+				dirty.clear();
+				lastSync = System.currentTimeMillis();
+				synchronized (this) {
+					forcedLsn = lsn;
+					// Full segments are synced, release mappings
+					for (int i = unforcedIndex; i < currentIndex; i++) {
+						final Segment s = getSegment(i);
+						if (s != null)
+							s.map = null;
+					}
+					unforcedIndex = currentIndex;
+					deleteUnusedSegments();
+					notifyAll();
+				}
+				syncedLsn = lsn;
+				wakeWaiters();
+			}
+			if (stop)
+				break;
+			if (prepare > 0)
+				prepareSegment(prepare);
+		}
+		synchronized (this) {
+			if (next != null)
+				deleteFile(next.index);
+			next = null;
+		}
+	}
+
+	/**
+	 * Create next segment in advance, out of lock
+	 * 
+	 * @param index
+	 */
+	private void prepareSegment(final int index) {
+		try {
+			final Segment s = createSegment(index, maxFileSize);
+			synchronized (this) {
+				if ((next == null) && (current().index == (index - 1)) && !closed) {
+					next = s;
+				} else if (getSegment(index) == null) {
+					deleteFile(index);
+				}
+			}
+		} catch (IOException e) {
+			log.error("Binlog segment error: " + e.toString(), e);
+			try {
+				Thread.sleep(1000);
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Delete oldest segments without live jobs (called with lock). The records that replaced their
+	 * put records (delete or migrated put) must be synced.
+	 */
+	private void deleteUnusedSegments() {
+		while (segments.size() > 1) {
+			final Segment s = segments.get(0);
+			if ((s.live > 0) || (s.map != null) || (s.releaseLsn > forcedLsn))
+				break;
+			segments.remove(0);
+			deleteFile(s.index);
+		}
+	}
+
+	private void deleteFile(final int index) {
+		final File f = getFile(directory, index);
+		if (f.exists() && !f.delete())
+			log.warn("Unable to delete binlog file: " + f);
+	}
+
+	/**
+	 * Create segment file, blocks are allocated with zeros (stores to a mapped sparse file on a
+	 * full disk would crash)
+	 * 
+	 * @param index
+	 * @param size
+	 * @return
+	 * @throws IOException
+	 */
+	private Segment createSegment(final int index, final long size) throws IOException {
+		final RandomAccessFile raf = new RandomAccessFile(getFile(directory, index), "rw");
+		try {
+			final FileChannel ch = raf.getChannel();
+			ch.truncate(0);
+			final ByteBuffer zero = ByteBuffer.allocate(64 * 1024);
+			long pos = 0;
+			while (pos < size) {
+				zero.clear();
+				if ((size - pos) < zero.capacity())
+					zero.limit((int) (size - pos));
+				pos += ch.write(zero, pos);
+			}
+			final Segment s = new Segment(index);
+			s.map = ch.map(FileChannel.MapMode.READ_WRITE, 0, size);
+			s.map.putInt(MAGIC).putInt(VERSION);
+			s.bytes = s.map.position();
+			return s;
+		} finally {
+			raf.close();
+		}
+	}
+
+	private static MappedByteBuffer mapReadOnly(final File f) throws IOException {
+		final RandomAccessFile raf = new RandomAccessFile(f, "r");
+		try {
+			return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+		} finally {
+			raf.close();
+		}
+	}
+
+	private static File getFile(final File dir, final int index) {
+		return new File(dir, FILE_PREFIX + index);
+	}
+
+	/**
+	 * Indexes of binlog files in directory (sorted)
+	 * 
+	 * @param dir
+	 * @return
+	 */
+	private static int[] listIndexes(final File dir) {
+		final String[] names = dir.list();
+		final ArrayList<Integer> list = new ArrayList<Integer>();
+		if (names != null) {
+			for (final String name : names) {
+				if (!name.startsWith(FILE_PREFIX))
+					continue;
+				try {
+					list.add(Integer.valueOf(name.substring(FILE_PREFIX.length())));
+				} catch (NumberFormatException e) {
+					continue;
+				}
+			}
+		}
+		final int[] indexes = new int[list.size()];
+		for (int i = 0; i < indexes.length; i++) {
+			indexes[i] = list.get(i).intValue();
+		}
+		Arrays.sort(indexes);
+		return indexes;
+	}
+
+	// ------------ Replay
+
+	/**
+	 * Read records of old segments (stops at first truncated or corrupt record of a segment) and
+	 * restore live jobs. Segments are mapped, bodies are copied once to the jobs.
+	 * 
+	 * @param dir
+	 * @return recovered jobs
+	 * @throws IOException
+	 */
+	private int replay(final File dir) throws IOException {
+		final TreeMap<Long, Recovered> jobs = new TreeMap<Long, Recovered>();
+		final CRC32 sum = new CRC32();
+		byte[] tmp = new byte[4096];
+		long maxId = 0;
+		final ArrayList<Segment> old;
+		synchronized (this) {
+			old = new ArrayList<Segment>(segments.subList(0, segments.size() - 1));
+		}
+		for (final Segment s : old) {
+			final File f = getFile(dir, s.index);
+			if (!f.exists())
+				continue;
+			final MappedByteBuffer m = mapReadOnly(f);
+			if ((m.limit() < FILE_HEADER) || (m.getInt(0) != MAGIC) || (m.getInt(4) != VERSION)) {
+				log.error("Invalid binlog file (ignored): " + f);
+				continue;
+			}
+			int pos = FILE_HEADER;
+			while ((pos + FRAME_HEADER) <= m.limit()) {
+				final int len = m.getInt(pos);
+				if (len == 0) // End of records
+					break;
+				if ((len < 0) || (len > (m.limit() - pos - FRAME_HEADER))) {
+					log.warn("Binlog file " + f + " truncated at " + pos);
+					break;
+				}
+				final ByteBuffer rec = m.duplicate();
+				rec.limit(pos + FRAME_HEADER + len).position(pos + FRAME_HEADER);
+				if (tmp.length < len)
+					tmp = new byte[len];
+				rec.duplicate().get(tmp, 0, len);
+				sum.reset();
+				sum.update(tmp, 0, len);
+				if ((int) sum.getValue() != m.getInt(pos + 4)) {
+					log.warn("Binlog file " + f + " corrupt at " + pos);
+					break;
+				}
+				maxId = Math.max(maxId, apply(jobs, rec, s.index));
+				pos += FRAME_HEADER + len;
+			}
+			s.bytes = pos;
+		}
+		final TubeMapper mapper = TubeMapper.getInstance();
+		mapper.advanceIds(maxId);
+		for (final Map.Entry<Long, Recovered> e : jobs.entrySet()) {
+			final Recovered r = e.getValue();
+			final Job job = mapper.recoverJob(r.tube, e.getKey().longValue(), r.prio, r.created,
+					r.readyTime, r.ttr, r.body, r.buried);
+			synchronized (this) {
+				final Segment s = getSegment(r.file);
+				s.live++;
+				s.liveBytes += putSize(job);
+				job.binlogFile = r.file;
+			}
+		}
+		return jobs.size();
+	}
+
+	/**
+	 * Apply record to recovered jobs
+	 * 
+	 * @param jobs
+	 * @param b record (in mapped segment)
+	 * @param index segment of record
+	 * @return id of job
+	 */
+	private static long apply(final Map<Long, Recovered> jobs, final ByteBuffer b, final int index) {
+		final byte type = b.get();
+		final long id = b.getLong();
+		final Long key = Long.valueOf(id);
+		if (type == REC_PUT) {
+			final Recovered r = new Recovered();
+			r.file = index;
+			r.prio = (b.getInt() & 0xFFFFFFFFL);
+			r.ttr = (b.getInt() & 0xFFFFFFFFL);
+			r.created = b.getLong();
+			r.readyTime = b.getLong();
+			final char[] name = new char[b.getShort() & 0xFFFF];
+			for (int i = 0; i < name.length; i++) {
+				name[i] = (char) (b.get() & 0xFF);
+			}
+			r.tube = new String(name);
+			final int len = b.getInt();
+			r.body = b.slice();
+			r.body.limit(len);
+			jobs.put(key, r);
+			return id;
+		}
+		final Recovered r = jobs.get(key);
+		if (r == null)
+			return id;
+		switch (type) {
+		case REC_RELEASE:
+			r.prio = (b.getInt() & 0xFFFFFFFFL);
+			r.readyTime = b.getLong();
+			break;
+		case REC_BURY:
+			r.prio = (b.getInt() & 0xFFFFFFFFL);
+			r.buried = true;
+			break;
+		case REC_KICK:
+			r.buried = false;
+			r.readyTime = 0;
+			break;
+		case REC_DELETE:
+			jobs.remove(key);
+			break;
+		default:
+			log.warn("Unknown binlog record type: " + type);
+			break;
+		}
+		return id;
+	}
+
+	// ------------ Compaction
+
+	/**
+	 * Oldest segment to compact: the log has more dead bytes than live (and more than one
+	 * segment of them)
+	 * 
+	 * @return index or -1 if none
+	 */
+	private synchronized int nextCompaction() {
+		if (closed || (segments.size() <= 2))
+			return -1;
+		final Segment oldest = segments.get(0);
+		if (oldest.live == 0) // Only needs sync to be deleted
+			return oldest.index;
+		long bytes = 0;
+		long live = 0;
+		for (final Segment s : segments) {
+			bytes += s.bytes;
+			live += s.liveBytes;
+		}
+		if ((bytes - live) <= Math.max(live, maxFileSize))
+			return -1;
+		return oldest.index;
+	}
+
+	/**
+	 * Migrate live jobs of segment: put records are read from the mapped file and each job is
+	 * locked only while written again.
+	 * 
+	 * @param index
+	 * @throws IOException
+	 */
+	private void compact(final int index) throws IOException {
+		final File f = getFile(directory, index);
+		if (!f.exists())
+			return;
+		final MappedByteBuffer m = mapReadOnly(f);
+		final TubeMapper mapper = TubeMapper.getInstance();
+		final long limit;
+		synchronized (this) {
+			final Segment s = getSegment(index);
+			limit = (((s == null) || (s.live == 0)) ? 0 : Math.min(s.bytes, m.limit()));
+		}
+		int pos = FILE_HEADER;
+		while ((pos + FRAME_HEADER) <= limit) {
+			final int len = m.getInt(pos);
+			if ((len <= 0) || (len > (limit - pos - FRAME_HEADER)))
+				break;
+			if (m.get(pos + FRAME_HEADER) == REC_PUT) {
+				final Job job = mapper.getJob(m.getLong(pos + FRAME_HEADER + 1));
+				if (job != null)
+					job.doMigrate(index);
+			}
+			pos += FRAME_HEADER + len;
+		}
+	}
+
+	private final class Compactor implements Runnable {
+		@Override
+		public void run() {
+			while (true) {
+				try {
+					Thread.sleep(COMPACT_INTERVAL);
+					int last = -1;
+					int index = -1;
+					while (((index = nextCompaction()) >= 0) && (index != last)) {
+						compact(index);
+						sync(); // Segment can be deleted once migrated records are on disk
+						synchronized (Binlog.this) {
+							deleteUnusedSegments();
+						}
+						last = index;
+					}
+				} catch (InterruptedException e) {
+					break;
+				} catch (Exception e) {
+					log.error("Binlog compaction error: " + e.toString(), e);
+				}
+			}
+		}
+	}
+
+	private static final class Recovered {
+		int file;
+		String tube;
+		long prio;
+		long ttr;
+		long created;
+		long readyTime;
+		ByteBuffer body;
+		boolean buried = false;
+	}
+
+	private static final class Segment {
+		final int index;
+		MappedByteBuffer map = null; // mapped for writes until synced
+		long bytes = 0; // used
+		int live = 0; // jobs put in this segment not deleted or migrated
+		long liveBytes = 0; // bytes of their put records
+		long releaseLsn = 0; // last record that replaced a put record of this segment
+
+		Segment(final int index) {
+			this.index = index;
+		}
+	}
+}
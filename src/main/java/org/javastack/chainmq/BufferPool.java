@@ -0,0 +1,136 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.javastack.chainmq;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of direct buffers in size classes (powers of two). Connections borrow buffers only while
+ * they have bytes in flight and return them when idle.
+ *
+ * @author Guillermo Grandes / guillermo.grandes[at]gmail.com
+ */
+public final class BufferPool {
+	public static final int MIN_SIZE = 4096;
+	public static final int CLASSES = 9; // 4KB..1MB
+	public static final int MAX_SIZE = (MIN_SIZE << (CLASSES - 1));
+	private static final BufferPool singleton = new BufferPool(64L * 1024 * 1024);
+	private final ArrayDeque<ByteBuffer>[] free;
+	private final long maxFreeBytes;
+	private final AtomicLong allocatedBytes = new AtomicLong();
+	private final AtomicLong usedBytes = new AtomicLong();
+	private final AtomicLong freeBytes = new AtomicLong();
+	private final AtomicLong usedBuffers = new AtomicLong();
+
+	public static BufferPool getInstance() {
+		return singleton;
+	}
+
+	/**
+	 * Create Pool
+	 *
+	 * @param maxFreeBytes max bytes retained in free lists
+	 */
+	public BufferPool(final long maxFreeBytes) {
+		this.maxFreeBytes = maxFreeBytes;
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		final ArrayDeque<ByteBuffer>[] lists = new ArrayDeque[CLASSES]; // No generic array creation
+		for (int i = 0; i < CLASSES; i++) {
+			lists[i] = new ArrayDeque<ByteBuffer>();
+		}
+		this.free = lists;
+	}
+
+	private static int sizeClass(final int size) {
+		int c = 0;
+		int s = MIN_SIZE;
+		while (s < size) {
+			s <<= 1;
+			c++;
+		}
+		return c;
+	}
+
+	/**
+	 * Borrow a buffer (cleared) with at least size bytes
+	 *
+	 * @param size
+	 * @return
+	 */
+	public ByteBuffer acquire(final int size) {
+		final int c = sizeClass(size);
+		ByteBuffer buf = null;
+		if (c < CLASSES) {
+			final ArrayDeque<ByteBuffer> list = free[c];
+			synchronized (list) {
+				buf = list.pollLast();
+			}
+			if (buf != null) {
+				freeBytes.addAndGet(-buf.capacity());
+			} else {
+				buf = ByteBuffer.allocateDirect(MIN_SIZE << c);
+				allocatedBytes.addAndGet(buf.capacity());
+			}
+		} else {
+			// Too big for pooling
+			buf = ByteBuffer.allocateDirect(size);
+			allocatedBytes.addAndGet(buf.capacity());
+		}
+		usedBytes.addAndGet(buf.capacity());
+		usedBuffers.incrementAndGet();
+		return buf;
+	}
+
+	/**
+	 * Return buffer to pool
+	 *
+	 * @param buf
+	 */
+	public void release(final ByteBuffer buf) {
+		final int cap = buf.capacity();
+		usedBytes.addAndGet(-cap);
+		usedBuffers.decrementAndGet();
+		final int c = sizeClass(cap);
+		if ((c < CLASSES) && ((MIN_SIZE << c) == cap) && ((freeBytes.get() + cap) <= maxFreeBytes)) {
+			buf.clear();
+			final ArrayDeque<ByteBuffer> list = free[c];
+			synchronized (list) {
+				list.addLast(buf);
+			}
+			freeBytes.addAndGet(cap);
+		} else {
+			// Dropped, GC will free native memory
+			allocatedBytes.addAndGet(-cap);
+		}
+	}
+
+	public long getAllocatedBytes() {
+		return allocatedBytes.get();
+	}
+
+	public long getUsedBytes() {
+		return usedBytes.get();
+	}
+
+	public long getFreeBytes() {
+		return freeBytes.get();
+	}
+
+	public long getUsedBuffers() {
+		return usedBuffers.get();
+	}
+}
@@ -14,14 +14,15 @@
  */
 package org.javastack.chainmq;
 
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.concurrent.CopyOnWriteArraySet;
 
 
 import org.apache.log4j.Logger;
-import org.javastack.chainmq.Job.JobState;
 
 /**
  * Client Context
@@ -32,17 +33,26 @@ public class ClientContext {
 	private static final Logger log = Logger.getLogger(ClientContext.class);
 	private final ReservedJobsExpirer expirer;
 	public final AsyncTaskTracker tracker;
-	public final CopyOnWriteArraySet<String> watchedTubes = new CopyOnWriteArraySet<String>();
-	private final TreeSet<Job> reservedJobs = new TreeSet<Job>(Job.reserveExpireComparator);
+	public final CopyOnWriteArraySet<Tube> watchedTubes = new CopyOnWriteArraySet<Tube>();
+	private TreeSet<Job> reservedJobs = null; // allocated only while jobs reserved
 	public final ClientHandler clientHandler;
-	String currentTube = Constants.DEFAULT_TUBE;
+	Tube currentTube = TubeMapper.getInstance().getTubeOrCreate(Constants.DEFAULT_TUBE);
+	private boolean released = false;
+	private boolean producer = false; // put issued
+	private boolean worker = false; // reserve issued
+	private volatile Tube.AsyncUpdateCallBack waiter = null; // last blocking reserve
 
 	public ClientContext(final ReservedJobsExpirer expirer, final ClientHandler clientHandler,
 			final AsyncTaskTracker tracker) {
 		this.expirer = expirer;
 		this.clientHandler = clientHandler;
 		this.tracker = tracker;
-		addWatchedTube(currentTube);
+		watchedTubes.add(currentTube);
+		currentTube.statsUsing(true);
+		currentTube.statsWatching(true);
+		final ServerStats stats = ServerStats.getInstance();
+		stats.connections.increment();
+		stats.totalConnections.increment();
 	}
 
 	public AsyncTaskTracker getTracker() {
@@ -50,34 +60,91 @@ public class ClientContext {
 	}
 
 	public String getCurrentTube() {
+		return currentTube.getName();
+	}
+
+	public Tube getUsedTube() {
 		return currentTube;
 	}
 
-	public void setCurrentTube(final String currentTube) {
-		this.currentTube = currentTube;
+	public void setWaiter(final Tube.AsyncUpdateCallBack waiter) {
+		this.waiter = waiter;
 	}
 
-	public void addWatchedTube(final String tubeName) {
-		watchedTubes.add(tubeName);
+	public synchronized void markProducer() {
+		if (producer || released)
+			return;
+		producer = true;
+		ServerStats.getInstance().producers.increment();
 	}
 
-	public Set<String> getWatchedTubes() {
+	public synchronized void markWorker() {
+		if (worker || released)
+			return;
+		worker = true;
+		ServerStats.getInstance().workers.increment();
+	}
+
+	public synchronized void setCurrentTube(final String tubeName) {
+		final Tube tube = TubeMapper.getInstance().getTubeOrCreate(tubeName);
+		if (tube == currentTube)
+			return;
+		currentTube.statsUsing(false);
+		tube.statsUsing(true);
+		this.currentTube = tube;
+	}
+
+	public synchronized void addWatchedTube(final String tubeName) {
+		final Tube tube = TubeMapper.getInstance().getTubeOrCreate(tubeName);
+		if (watchedTubes.add(tube))
+			tube.statsWatching(true);
+	}
+
+	public Set<Tube> getWatchedTubes() {
 		return Collections.unmodifiableSet(watchedTubes);
 	}
 
-	public void ignoreWatchedTube(final String tubeName) {
-		watchedTubes.remove(tubeName);
+	/**
+	 * Watched tube with the best (prio, id) ready job, from heads published by tubes (no locks,
+	 * caller must claim the job under the tube lock and retry if it was taken)
+	 * 
+	 * @return tube or null if no ready jobs
+	 */
+	public Tube bestReadyTube() {
+		Tube best = null;
+		Job bestJob = null;
+		for (final Tube tube : watchedTubes) {
+			final Job head = tube.peekReadyHead();
+			if ((head != null) && ((bestJob == null) || (Job.priorityComparator.compare(head, bestJob) < 0))) {
+				best = tube;
+				bestJob = head;
+			}
+		}
+		return best;
 	}
 
-	public void jobReserve(final Job job) {
+	public List<String> getWatchedTubeNames() {
+		final List<String> names = new ArrayList<String>(watchedTubes.size());
+		for (final Tube tube : watchedTubes) {
+			names.add(tube.getName());
+		}
+		return names;
+	}
+
+	public synchronized void ignoreWatchedTube(final String tubeName) {
+		final Tube tube = TubeMapper.getInstance().getTubeIfExist(tubeName);
+		if ((tube != null) && watchedTubes.remove(tube))
+			tube.statsWatching(false);
+	}
+
+	public boolean jobReserve(final Job job) {
 		if (log.isDebugEnabled())
 			log.debug("Reserved job: " + job);
-		job.setReserved(this);
-		expirer.watch(this);
+		return job.setReserved(this);
 	}
 
 	public synchronized Job jobReservedNearExpire() {
-		if (reservedJobs.isEmpty())
+		if (reservedJobs == null)
 			return null;
 		final Job expire = reservedJobs.first();
 		if (log.isTraceEnabled())
@@ -85,29 +152,68 @@ public class ClientContext {
 		return expire;
 	}
 
-	public synchronized void jobsFreeReserved() {
-		for (final Job j : reservedJobs.toArray(new Job[0])) {
+	/**
+	 * Return reserved jobs to ready. Snapshot is taken under the context lock and jobs are
+	 * released out of it (job transitions lock job, then context).
+	 */
+	public void jobsFreeReserved() {
+		final Job[] jobs;
+		synchronized (this) {
+			if (reservedJobs == null)
+				return;
+			jobs = reservedJobs.toArray(new Job[reservedJobs.size()]);
+		}
+		for (final Job j : jobs) {
 			if (log.isDebugEnabled())
 				log.debug("FreeJob: " + j);
-			if (j.getState() == JobState.RESERVED)
-				j.setReady();
+			j.releaseReserved(this);
 		}
 	}
 
 	public synchronized void addReserve(final Job job) {
 		synchronized (job.tube) {
+			if (reservedJobs == null)
+				reservedJobs = new TreeSet<Job>(Job.reserveExpireComparator);
 			reservedJobs.add(job);
 		}
+		expirer.watch(job);
 	}
 
 	public synchronized void removeReserve(final Job job) {
+		expirer.unwatch(job);
 		synchronized (job.tube) {
+			if (reservedJobs == null)
+				return;
 			reservedJobs.remove(job);
+			if (reservedJobs.isEmpty())
+				reservedJobs = null;
 		}
 	}
 
-	public synchronized void freeResources() {
+	public void freeResources() {
+		// Stop waiting before free jobs (don't reserve them again)
+		final Tube.AsyncUpdateCallBack w = waiter;
+		if (w != null) {
+			w.taskMarkDone();
+			w.cancelWait();
+			waiter = null;
+		}
 		jobsFreeReserved();
+		synchronized (this) {
+			if (released)
+				return;
+			released = true;
+			currentTube.statsUsing(false);
+			for (final Tube tube : watchedTubes) {
+				tube.statsWatching(false);
+			}
+			final ServerStats stats = ServerStats.getInstance();
+			stats.connections.decrement();
+			if (producer)
+				stats.producers.decrement();
+			if (worker)
+				stats.workers.decrement();
+		}
 	}
 
 }
@@ -18,10 +18,9 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
-import java.nio.charset.Charset;
-import java.util.List;
+import java.util.ArrayDeque;
+import java.util.Arrays;
 
 import org.apache.log4j.Logger;
 
@@ -32,28 +31,64 @@ import org.apache.log4j.Logger;
  */
 public class ClientHandler {
 	private static final Logger log = Logger.getLogger(ClientHandler.class);
-	private static final Charset charsetLatin1 = Charset.forName("ISO-8859-1");
+	private static final BufferPool pool = BufferPool.getInstance();
+	private static final SlabBodyStore store = SlabBodyStore.getInstance();
+	private static final Binlog binlog = Binlog.getInstance();
 	// Connection
-	final ByteBuffer bufIn = ByteBuffer.allocate(4096);
-	final ByteBuffer bufOut = ByteBuffer.allocate(4096);
+	ByteBuffer bufIn = null; // borrowed from pool while bytes in flight
 	final Server srv;
-	final Selector s;
+	final EventLoop loop;
 	final SocketChannel sc;
 	final ClientContext cc;
+	final ArrayDeque<ByteBuffer> outQueue = new ArrayDeque<ByteBuffer>();
+	final ArrayDeque<ByteBuffer> outOwned = new ArrayDeque<ByteBuffer>(4); // pooled buffers in outQueue
+	final ArrayDeque<ByteBuffer> outBodies = new ArrayDeque<ByteBuffer>(4); // off-heap bodies in outQueue
+	final ArrayDeque<Long> outBodyRefs = new ArrayDeque<Long>(4); // references of outBodies
+	ByteBuffer outBuf = null; // pooled buffer being filled with small responses
+	final long outHighWater;
+	final long outHardLimit;
+	long outBytes = 0;
+	long outLsn = 0; // binlog records that must be synced before writing output
+	boolean syncWait = false; // waiting binlog group commit
+	SelectionKey key = null;
 	// State
-	boolean pausedRead = false;
-	boolean doClose = false;
+	int interestOps = 0;
+	boolean writeBlocked = false;
+	boolean flushRequested = false;
+	volatile boolean outOverflow = false;
+	volatile boolean waitingResponse = false;
+	volatile boolean doClose = false;
+	int responses = 0;
 	int protoState = Constants.PROTO_READ_LINE;
 	int needData = 0;
+	int lineBegin = 0;
+	int bodyBegin = 0;
+	CommandHandler pendingHandler = null;
+	ByteBuffer bodyBuf = null; // job body being received
+	long bodyRef = -1; // off-heap chunk of bodyBuf
+	ByteBuffer bodyEnd = null; // End-CRLF of body
+	final ByteBuffer[] bodyIov = new ByteBuffer[2]; // scattering read of body
 	// Tokens
-	List<String> tokens;
+	final RequestTokens tokens = new RequestTokens();
 
-	public ClientHandler(final Server srv, final Selector s, final SocketChannel sc, final AsyncTaskTracker tracker) {
+	public ClientHandler(final Server srv, final EventLoop loop, final SocketChannel sc,
+			final AsyncTaskTracker tracker) {
 		this.srv = srv;
-		this.s = s;
+		this.loop = loop;
 		this.sc = sc;
 		this.cc = new ClientContext(srv.getReservedJobsExpirer(), this, tracker);
-		tokensClear();
+		this.outHighWater = srv.getOutputHighWater();
+		this.outHardLimit = srv.getOutputHardLimit();
+	}
+
+	/**
+	 * Connection registered in the event loop selector
+	 * 
+	 * @param key
+	 */
+	void registered(final SelectionKey key) {
+		this.key = key;
+		this.interestOps = key.interestOps();
 	}
 
 	public String getName() {
@@ -67,122 +102,237 @@ public class ClientHandler {
 	 * @throws IOException
 	 */
 	public int doRead() throws IOException {
-		if (doClose)
-			doClose();
-		int len = sc.read(bufIn);
+		if (doClose || waitingResponse || isOutputFull())
+			return 0;
+		final long len;
+		if (protoState == Constants.PROTO_READ_BODY) {
+			// Stream body straight to job buffer (and End-CRLF)
+			len = sc.read(bodyIov);
+		} else {
+			if (bufIn == null)
+				bufIn = pool.acquire(BufferPool.MIN_SIZE);
+			len = sc.read(bufIn);
+		}
 		if (len < 0) {
 			sc.close();
 			throw new ClosedChannelException();
 		}
-		if ((len == 0) && (!bufIn.hasRemaining())) { // Overflow
-			// Overflow
+		if (protoState == Constants.PROTO_READ_BODY) {
+			if (!isBodyComplete())
+				return (int) len;
+			doReadBody();
+			// Only request line was retained
+			bufIn.clear();
+		}
+		processInput();
+		if (bufIn == null) // Closed
+			return (int) len;
+		if (!waitingResponse && !doClose && !isOutputFull() && sc.isOpen() && !bufIn.hasRemaining()) {
+			// Request line overflow
 			queueClose();
 			log.warn("Input overflow: " + bufIn);
 			responseMessage(Constants.ERROR_BAD_FORMAT);
-			return len;
 		}
-		while (!pausedRead) {
-			// Read Line
-			if (protoState == Constants.PROTO_READ_LINE)
-				doReadLine();
-			// Read Data + End-CRLF
-			if (protoState == Constants.PROTO_READ_BODY) {
-				if (doReadBody() && (bufIn.position() > 0))
-					continue;
+		releaseInputIfIdle();
+		if (sc.isOpen())
+			updateInterest();
+		return (int) len;
+	}
+
+	/**
+	 * Execute all complete commands pending in input buffer (pipelining). Stop only if a command
+	 * (blocking reserve) is waiting for an async response or the connection is closing.
+	 * 
+	 * @throws IOException
+	 */
+	void processInput() throws IOException {
+		final int hipos = bufIn.position();
+		int pos = ((protoState == Constants.PROTO_READ_BODY) ? bodyBegin : 0);
+		while (!waitingResponse && !doClose && !isOutputFull() && sc.isOpen()) {
+			if (protoState == Constants.PROTO_READ_LINE) {
+				// Read Line
+				final int eol = findLineEnd(pos, hipos);
+				if (eol < 0)
+					break;
+				lineBegin = pos;
+				pos = eol + 2;
+				doReadLine(lineBegin, eol);
+			} else if (protoState == Constants.PROTO_READ_BODY) {
+				// Move buffered Data + End-CRLF to job buffer
+				pos = fillBody(pos, hipos);
+				if (!isBodyComplete())
+					break;
+				doReadBody();
+			} else {
+				// Discard Data + End-CRLF
+				final int n = Math.min(needData, hipos - pos);
+				pos += n;
+				needData -= n;
+				if (needData > 0)
+					break;
+				reset();
 			}
-			break;
 		}
-		return len;
+		if (bufIn == null) // Closed
+			return;
+		if (protoState == Constants.PROTO_READ_BODY) {
+			// Keep only request line (tokens point to it), rest of body goes direct to job buffer
+			bufIn.limit(bodyBegin).position(lineBegin);
+			bufIn.compact();
+			tokens.rebase(bufIn, lineBegin);
+			bodyBegin -= lineBegin;
+			lineBegin = 0;
+		} else {
+			bufIn.limit(hipos).position(Math.min(pos, hipos));
+			bufIn.compact();
+		}
+	}
+
+	private int fillBody(final int pos, final int hipos) {
+		int p = pos;
+		p = moveInput(bodyBuf, p, hipos);
+		p = moveInput(bodyEnd, p, hipos);
+		bufIn.limit(bufIn.capacity()).position(hipos);
+		return p;
+	}
+
+	private int moveInput(final ByteBuffer dst, final int pos, final int hipos) {
+		final int n = Math.min(dst.remaining(), hipos - pos);
+		if (n > 0) {
+			bufIn.limit(pos + n).position(pos);
+			dst.put(bufIn);
+		}
+		return pos + n;
+	}
+
+	private boolean isBodyComplete() {
+		return !bodyBuf.hasRemaining() && !bodyEnd.hasRemaining();
+	}
+
+	/**
+	 * Return input buffer to pool if nothing is pending
+	 */
+	private void releaseInputIfIdle() {
+		if ((bufIn != null) && (bufIn.position() == 0) && (protoState != Constants.PROTO_READ_BODY)) {
+			pool.release(bufIn);
+			bufIn = null;
+		}
 	}
 
 	// Reset state to Read Line
 	void reset() {
 		needData = 0;
 		protoState = Constants.PROTO_READ_LINE;
-		tokensClear();
-	}
-
-	void doReadLine() throws IOException {
-		int hipos = bufIn.position();
-		int pos = 0;
-		while (pos < hipos && !pausedRead) {
-			bufIn.position(pos);
-			pos++;
-			final byte b = bufIn.get();
-			if ((b == '\r') && (pos++ < hipos) && (bufIn.get() == '\n')) {
-				final String msg = new String(bufIn.array(), 0, pos - 2, charsetLatin1);
-				tokens = Utils.parseTokens(msg);
-				if (log.isDebugEnabled())
-					log.debug(getName() + " New message: <" + dumpBuffer(msg.getBytes(charsetLatin1)) + "> tokens=" + tokensCount() + " valid=" + tokensAreValid());
-				// Compact
-				bufIn.limit(hipos).position(pos);
-				bufIn.compact();
-				//
-				try {
-					if (!tokensAreValid())
-						throw new HandlerException(Constants.ERROR_BAD_FORMAT);
-
-					if (tokens.get(0).isEmpty())
-						throw new HandlerException(Constants.ERROR_UNKNOWN_COMMAND);
-
-					final CommandHandler handler = CommandHandler.getHandler(tokens.get(0));
-					if (handler == null)
-						throw new HandlerException(Constants.ERROR_UNKNOWN_COMMAND);
-
-					final int expectedTokens = handler.expectedTokens();
-					if ((expectedTokens > 0) && (expectedTokens != tokensCount()))
-						throw new HandlerException(Constants.ERROR_BAD_FORMAT);
-
-					final boolean expectedData = handler.expectedData();
-					if (expectedData) {
-						needData = handler.getDataLength(this, tokens);
-						protoState = Constants.PROTO_READ_BODY;
-						if (log.isDebugEnabled())
-							log.debug("Reading bodyData length expected: " + needData);
-						break;
-					} else {
-						needData = 0;
-						pauseRead();
-						if (log.isDebugEnabled())
-							log.debug(getName() + " REQUEST: " + tokens);
-						handler.handle(this, tokens);
+		pendingHandler = null;
+		bodyBuf = null;
+		bodyIov[0] = null;
+		if (bodyRef >= 0) {
+			store.release(bodyRef);
+			bodyRef = -1;
+		}
+		tokens.clear();
+	}
+
+	/**
+	 * Discard incoming Data + End-CRLF
+	 * 
+	 * @param error response
+	 * @return exception to throw
+	 */
+	private HandlerException skipBody(final String error) {
+		needData += 2;
+		protoState = Constants.PROTO_SKIP_BODY;
+		return new HandlerException(error);
+	}
+
+	private int findLineEnd(final int begin, final int hipos) {
+		for (int i = begin; i < hipos - 1; i++) {
+			if ((bufIn.get(i) == '\r') && (bufIn.get(i + 1) == '\n'))
+				return i;
+		}
+		return -1;
+	}
+
+	void doReadLine(final int begin, final int eol) throws IOException {
+		tokens.parse(bufIn, begin, eol);
+		if (log.isDebugEnabled())
+			log.debug(getName() + " New message: <" + tokens + "> tokens=" + tokens.size() + " valid="
+					+ tokens.isValid());
+		try {
+			if (!tokens.isValid())
+				throw new HandlerException(Constants.ERROR_BAD_FORMAT);
+
+			if (tokens.length(0) == 0)
+				throw new HandlerException(Constants.ERROR_UNKNOWN_COMMAND);
+
+			final CommandHandler handler = CommandHandler.getHandler(tokens);
+			if (handler == null)
+				throw new HandlerException(Constants.ERROR_UNKNOWN_COMMAND);
+			handler.calls.increment();
+
+			final int expectedTokens = handler.expectedTokens();
+			if ((expectedTokens > 0) && (expectedTokens != tokens.size()))
+				throw new HandlerException(Constants.ERROR_BAD_FORMAT);
+
+			final boolean expectedData = handler.expectedData();
+			if (expectedData) {
+				needData = handler.getDataLength(this, tokens);
+				if (needData > srv.getMaxJobSize())
+					throw skipBody(Constants.ERROR_JOB_TOO_BIG);
+				// Job buffer sized once, body is streamed into it (off-heap if enabled)
+				bodyRef = store.allocate(needData);
+				if (bodyRef >= 0) {
+					bodyBuf = store.buffer(bodyRef, needData);
+				} else {
+					try {
+						bodyBuf = ByteBuffer.wrap(new byte[needData]);
+					} catch (OutOfMemoryError e) {
+						log.error("OutOfMemoryError: " + e.toString(), e);
+						throw skipBody(Constants.ERROR_OUT_OF_MEMORY);
 					}
-				} catch (HandlerException e) {
-					responseMessage(e.getMessage());
-				} catch (OutOfMemoryError e) {
-					log.error("OutOfMemoryError: " + e.toString(), e);
-					responseMessage(Constants.ERROR_OUT_OF_MEMORY);
-				} catch (Exception e) {
-					queueClose();
-					log.error("Exception: " + e.toString(), e);
-					responseMessage(Constants.ERROR_INTERNAL_ERROR);
-				} finally {
-					pos = 0;
-					hipos = bufIn.position();
 				}
-				if (!sc.isOpen())
-					break;
-				//
-				tokensClear();
+				if (bodyEnd == null)
+					bodyEnd = ByteBuffer.allocate(2);
+				bodyEnd.clear();
+				bodyIov[0] = bodyBuf;
+				bodyIov[1] = bodyEnd;
+				pendingHandler = handler;
+				bodyBegin = eol + 2;
+				protoState = Constants.PROTO_READ_BODY;
+				if (log.isDebugEnabled())
+					log.debug("Reading bodyData length expected: " + needData);
+				return;
 			}
+			needData = 0;
+			if (log.isDebugEnabled())
+				log.debug(getName() + " REQUEST: " + tokens);
+			final int seq = beginCommand();
+			handler.handle(this, tokens);
+			endCommand(seq);
+		} catch (HandlerException e) {
+			responseMessage(e.getMessage());
+		} catch (OutOfMemoryError e) {
+			log.error("OutOfMemoryError: " + e.toString(), e);
+			responseMessage(Constants.ERROR_OUT_OF_MEMORY);
+		} catch (Exception e) {
+			queueClose();
+			log.error("Exception: " + e.toString(), e);
+			responseMessage(Constants.ERROR_INTERNAL_ERROR);
 		}
+		tokens.clear();
 	}
 
-	boolean doReadBody() throws IOException {
-		int hipos = bufIn.position();
-		if (hipos < (needData + 2)) { // data + CRLF
-			return false;
-		}
+	void doReadBody() throws IOException {
 		try {
-			bufIn.flip();
-			byte[] buf = new byte[needData];
-			bufIn.get(buf);
-			if ((bufIn.get() == '\r') && (bufIn.get() == '\n')) {
-				pauseRead();
-				final CommandHandler handler = CommandHandler.getHandler(tokens.get(0));
+			if ((bodyEnd.get(0) == '\r') && (bodyEnd.get(1) == '\n')) {
 				if (log.isDebugEnabled())
 					log.debug(getName() + " REQUEST: " + tokens);
-				handler.handle(this, tokens, buf);
+				final int seq = beginCommand();
+				final byte[] data = ((bodyRef < 0) ? bodyBuf.array() : null);
+				final long dataRef = bodyRef;
+				bodyRef = -1; // Owned by handler
+				pendingHandler.handle(this, tokens, data, dataRef, needData);
+				endCommand(seq);
 			} else {
 				throw new HandlerException(Constants.ERROR_EXPECTED_CRLF);
 			}
@@ -196,21 +346,41 @@ public class ClientHandler {
 			log.error("Exception: " + e.toString(), e);
 			responseMessage(Constants.ERROR_INTERNAL_ERROR);
 		}
-		// Compact
-		bufIn.limit(hipos).position(needData + 2);
-		bufIn.compact();
-		hipos = bufIn.position();
-		//
 		reset();
-		//
-		return true;
+	}
+
+	private int beginCommand() {
+		synchronized (outQueue) {
+			return responses;
+		}
 	}
 
 	/**
-	 * Signal connection for close
+	 * If command has not responded yet (blocking reserve), hold back next commands until async
+	 * response arrives.
+	 */
+	private void endCommand(final int seq) {
+		synchronized (outQueue) {
+			if ((responses == seq) && sc.isOpen()) {
+				if (log.isDebugEnabled())
+					log.debug(getName() + " Waiting async response");
+				waitingResponse = true;
+			}
+		}
+	}
+
+	/**
+	 * Signal connection for close, after responses already queued are written
 	 */
 	public void queueClose() {
-		doClose = true;
+		final boolean notify;
+		synchronized (outQueue) {
+			doClose = true;
+			notify = !flushRequested;
+			flushRequested = true;
+		}
+		if (notify)
+			loop.requestFlush(this);
 	}
 
 	/**
@@ -224,9 +394,36 @@ public class ClientHandler {
 			sc.close();
 		} catch (IOException e) {
 		}
+		releaseBuffers();
 		doClean();
 	}
 
+	private void releaseBuffers() {
+		if (bufIn != null) {
+			pool.release(bufIn);
+			bufIn = null;
+		}
+		if (bodyRef >= 0) {
+			store.release(bodyRef);
+			bodyRef = -1;
+		}
+		synchronized (outQueue) {
+			ByteBuffer buf = null;
+			while ((buf = outOwned.pollFirst()) != null)
+				pool.release(buf);
+			outBodies.clear();
+			Long ref = null;
+			while ((ref = outBodyRefs.pollFirst()) != null)
+				store.release(ref.longValue());
+			if (outBuf != null) {
+				pool.release(outBuf);
+				outBuf = null;
+			}
+			outQueue.clear();
+			outBytes = 0;
+		}
+	}
+
 	public void doClean() {
 		log.info(getName() + " DoClean");
 		cc.freeResources();
@@ -234,57 +431,142 @@ public class ClientHandler {
 
 
 	/**
-	 * Write pending output buffer
+	 * Socket is writable again (only registered when socket buffer was full)
 	 * 
 	 * @return
 	 * @throws IOException
 	 */
-	public int doWrite() throws IOException {
+	public long doWrite() throws IOException {
 		if (log.isDebugEnabled())
 			log.debug("DoWrite()");
-		bufOut.flip();
-		int len = sc.write(bufOut);
-		bufOut.clear();
-		if (doClose) {
-			doClose();
-		} else {
-			if (log.isDebugEnabled())
-				log.debug(getName() + " Marked for READ");
-			sc.register(s, SelectionKey.OP_READ, this);
-			pausedRead = false;
-			doRead(); // Process pending buffers
-		}
-		return len;
+		writeBlocked = false;
+		return flush();
 	}
 
 	/**
-	 * Pause read of data from client
+	 * Write pending output queue (called by event loop once per iteration), resume pending input
+	 * if was waiting an async response and update interest ops.
 	 * 
-	 * @throws ClosedChannelException
+	 * @return
+	 * @throws IOException
 	 */
-	public void pauseRead() throws ClosedChannelException {
-		if (log.isDebugEnabled())
-			log.debug(getName() + " Paused READ");
-		final SelectionKey sk = sc.keyFor(s);
-		sc.register(s, (sk.interestOps() & ~SelectionKey.OP_READ), this);
-		pausedRead = true;
+	long flush() throws IOException {
+		synchronized (outQueue) {
+			flushRequested = false;
+		}
+		if (!sc.isOpen())
+			return 0;
+		if (outOverflow) {
+			log.warn(getName() + " Output hard limit reached (" + outHardLimit + " bytes), disconnect");
+			doClose();
+			return 0;
+		}
+		final long len = writeOutput();
+		if (doClose) {
+			if (!writeBlocked && !isSyncWait())
+				doClose();
+			return len;
+		}
+		if (!waitingResponse && (bufIn != null)) {
+			processInput(); // Process pending buffers
+			releaseInputIfIdle();
+		}
+		if (sc.isOpen())
+			updateInterest();
+		return len;
 	}
 
-	private void tokensClear() {
-		if (tokens != null)
-			tokens = null;
+	private long writeOutput() throws IOException {
+		if (writeBlocked)
+			return 0;
+		long len = 0;
+		final ByteBuffer[] iov = loop.iov;
+		synchronized (outQueue) {
+			sealOutput();
+			if (outLsn > binlog.getSyncedLsn()) {
+				// Responses of changes not yet on disk, wait group commit
+				if (!syncWait) {
+					syncWait = true;
+					binlog.awaitSync(this, outLsn);
+				}
+				return 0;
+			}
+			while (!outQueue.isEmpty()) {
+				// Gathering write (header + body + trailer) without copy
+				int count = 0;
+				long pending = 0;
+				for (final ByteBuffer buf : outQueue) {
+					pending += buf.remaining();
+					iov[count++] = buf;
+					if (count >= iov.length)
+						break;
+				}
+				final long wr = sc.write(iov, 0, count);
+				Arrays.fill(iov, 0, count, null);
+				len += wr;
+				outBytes -= wr;
+				while (!outQueue.isEmpty() && !outQueue.peekFirst().hasRemaining()) {
+					final ByteBuffer buf = outQueue.pollFirst();
+					if (outOwned.peekFirst() == buf)
+						pool.release(outOwned.pollFirst());
+					if (outBodies.peekFirst() == buf) {
+						outBodies.pollFirst();
+						store.release(outBodyRefs.pollFirst().longValue());
+					}
+				}
+				if (wr < pending) { // Socket buffer full
+					writeBlocked = true;
+					break;
+				}
+			}
+		}
+		return len;
 	}
 
-	private int tokensCount() {
-		if (tokens == null)
-			return 0;
-		return tokens.size();
+	private boolean isSyncWait() {
+		synchronized (outQueue) {
+			return syncWait;
+		}
 	}
 
-	private boolean tokensAreValid() {
-		if (tokens == null)
-			return false;
-		return (tokens.size() <= Constants.REQUEST_MAX_TOKENS);
+	/**
+	 * Binlog records synced (called from binlog writer), resume output
+	 */
+	void binlogSynced() {
+		synchronized (outQueue) {
+			syncWait = false;
+		}
+		loop.requestFlush(this);
+	}
+
+	/**
+	 * Output queue over high-water mark: stop reading and executing commands from this client
+	 * until the queue drains
+	 * 
+	 * @return
+	 */
+	private boolean isOutputFull() {
+		synchronized (outQueue) {
+			return (outBytes >= outHighWater);
+		}
+	}
+
+	/**
+	 * Update interest ops only if changed: READ if not waiting response and output under
+	 * high-water mark, WRITE only if socket buffer was full
+	 */
+	void updateInterest() {
+		int ops = 0;
+		if (writeBlocked)
+			ops |= SelectionKey.OP_WRITE;
+		if (!waitingResponse && !doClose && !isOutputFull())
+			ops |= SelectionKey.OP_READ;
+		if (ops != interestOps) {
+			if (log.isDebugEnabled())
+				log.debug(getName() + " Interest ops=" + ops);
+			key.interestOps(ops);
+			interestOps = ops;
+		}
 	}
 
 	public ClientContext getContext() {
@@ -295,33 +577,159 @@ public class ClientHandler {
 		return srv;
 	}
 
+	/**
+	 * Move small responses buffer to output queue (called with outQueue locked)
+	 */
+	private void sealOutput() {
+		if (outBuf != null) {
+			outBuf.flip();
+			outQueue.addLast(outBuf);
+			outOwned.addLast(outBuf);
+			outBuf = null;
+		}
+	}
+
+	/**
+	 * Get pooled buffer with space for a small response (called with outQueue locked)
+	 * 
+	 * @param len
+	 * @return
+	 */
+	private ByteBuffer outBuffer(final int len) {
+		if ((outBuf != null) && (outBuf.remaining() < len))
+			sealOutput();
+		if (outBuf == null)
+			outBuf = pool.acquire(Math.max(len, BufferPool.MIN_SIZE));
+		return outBuf;
+	}
+
+	/**
+	 * Begin response (called with outQueue locked)
+	 * 
+	 * @param len bytes of response (without payload)
+	 * @param payload bytes of payload (with trailer)
+	 * @return buffer to put response or null if hard limit is reached
+	 */
+	private ByteBuffer beginResponse(final int len, final int payload) {
+		if (!sc.isOpen() || checkHardLimit(len + payload))
+			return null;
+		return outBuffer(len);
+	}
+
+	/**
+	 * Response appended to output queue (in order), resume if waiting async response. Output is
+	 * flushed by the event loop at end of current iteration (or woken up if called from other
+	 * thread). With binlog fsync always, output is held until records appended before it are synced.
+	 */
+	private void endResponse() {
+		final boolean notify;
+		synchronized (outQueue) {
+			responses++;
+			if (binlog.isSyncRequired())
+				outLsn = binlog.getAppendedLsn();
+			waitingResponse = false;
+			notify = !flushRequested;
+			flushRequested = true;
+		}
+		if (notify)
+			loop.requestFlush(this);
+	}
+
+	/**
+	 * Account queued bytes, over hard limit the response is dropped and the client disconnected
+	 * 
+	 * @param len
+	 * @return true if limit is reached
+	 */
+	private boolean checkHardLimit(final long len) {
+		if (outOverflow || ((outBytes + len) > outHardLimit)) {
+			outOverflow = true;
+			return true;
+		}
+		outBytes += len;
+		return false;
+	}
+
+	private static void put(final ByteBuffer buf, final String str) {
+		final int len = str.length();
+		for (int i = 0; i < len; i++) {
+			buf.put((byte) str.charAt(i));
+		}
+	}
+
+	private static void put(final ByteBuffer buf, final long number) {
+		if (number == 0) {
+			buf.put((byte) '0');
+			return;
+		}
+		final int end = buf.position() + digits(number);
+		long n = number;
+		int i = end;
+		while (n > 0) {
+			buf.put(--i, (byte) ('0' + (n % 10)));
+			n /= 10;
+		}
+		buf.position(end);
+	}
+
+	private static int digits(final long number) {
+		int d = 1;
+		long n = number;
+		while (n >= 10) {
+			n /= 10;
+			d++;
+		}
+		return d;
+	}
+
+	private static ByteBuffer crlf(final ByteBuffer buf) {
+		return buf.put((byte) '\r').put((byte) '\n');
+	}
+
 	public void responseMessage(final String msg) throws ClosedChannelException {
 		// MESSAGE\r\n
 		if (log.isDebugEnabled())
 			log.debug(getName() + " RESPONSE: " + msg);
-		bufOut.put(msg.getBytes(charsetLatin1)).put((byte) '\r').put((byte) '\n');
-		sc.register(s, SelectionKey.OP_WRITE, this);
-		s.wakeup();
+		synchronized (outQueue) {
+			final ByteBuffer buf = beginResponse(msg.length() + 2, 0);
+			if (buf != null) {
+				put(buf, msg);
+				crlf(buf);
+			}
+		}
+		endResponse();
 	}
 
 	public void responseMessage(final String msg, final long p1) throws ClosedChannelException {
 		// MESSAGE <number>\r\n
 		if (log.isDebugEnabled())
-		log.debug(getName() + " RESPONSE: " + msg + " " + p1);
-		bufOut.put(msg.getBytes(charsetLatin1)).put((byte) ' ')
-				.put(Long.toString(p1).getBytes(charsetLatin1)).put((byte) '\r').put((byte) '\n');
-		sc.register(s, SelectionKey.OP_WRITE, this);
-		s.wakeup();
+			log.debug(getName() + " RESPONSE: " + msg + " " + p1);
+		synchronized (outQueue) {
+			final ByteBuffer buf = beginResponse(msg.length() + digits(p1) + 3, 0);
+			if (buf != null) {
+				put(buf, msg);
+				buf.put((byte) ' ');
+				put(buf, p1);
+				crlf(buf);
+			}
+		}
+		endResponse();
 	}
 
 	public void responseMessage(final String msg, final String p1) throws ClosedChannelException {
 		// MESSAGE <text>\r\n
 		if (log.isDebugEnabled())
 			log.debug(getName() + " RESPONSE: " + msg + " " + p1);
-		bufOut.put(msg.getBytes(charsetLatin1)).put((byte) ' ').put(p1.getBytes(charsetLatin1))
-				.put((byte) '\r').put((byte) '\n');
-		sc.register(s, SelectionKey.OP_WRITE, this);
-		s.wakeup();
+		synchronized (outQueue) {
+			final ByteBuffer buf = beginResponse(msg.length() + p1.length() + 3, 0);
+			if (buf != null) {
+				put(buf, msg);
+				buf.put((byte) ' ');
+				put(buf, p1);
+				crlf(buf);
+			}
+		}
+		endResponse();
 	}
 
 	public void responseMessage(final String msg, final int datalen, final byte[] data)
@@ -329,24 +737,84 @@ public class ClientHandler {
 		// MESSAGE <bytes>\r\n<data>\r\n
 		if (log.isDebugEnabled())
 			log.debug(getName() + " RESPONSE: " + msg + " " + datalen);
-		bufOut.put(msg.getBytes(charsetLatin1)).put((byte) ' ')
-				.put(Integer.toString(datalen).getBytes(charsetLatin1)).put((byte) '\r').put((byte) '\n')
-				.put(data, 0, datalen).put((byte) '\r').put((byte) '\n');
-		sc.register(s, SelectionKey.OP_WRITE, this);
-		s.wakeup();
+		synchronized (outQueue) {
+			final int hlen = msg.length() + digits(datalen) + 3;
+			final ByteBuffer buf = beginResponse(hlen, datalen + 2);
+			if (buf != null) {
+				put(buf, msg);
+				buf.put((byte) ' ');
+				put(buf, datalen);
+				crlf(buf);
+				queuePayload(ByteBuffer.wrap(data, 0, datalen));
+			}
+		}
+		endResponse();
 	}
 
 	public void responseMessage(final String msg, final long p1, final int datalen, final byte[] data)
 			throws ClosedChannelException {
 		// MESSAGE <number> <datalen>\r\n<data>\r\n
 		if (log.isDebugEnabled())
-		log.debug(getName() + " RESPONSE: " + msg + " " + p1 + " " + datalen);
-		bufOut.put(msg.getBytes(charsetLatin1)).put((byte) ' ')
-				.put(Long.toString(p1).getBytes(charsetLatin1)).put((byte) ' ')
-				.put(Integer.toString(datalen).getBytes(charsetLatin1)).put((byte) '\r').put((byte) '\n')
-				.put(data, 0, datalen).put((byte) '\r').put((byte) '\n');
-		sc.register(s, SelectionKey.OP_WRITE, this);
-		s.wakeup();
+			log.debug(getName() + " RESPONSE: " + msg + " " + p1 + " " + datalen);
+		synchronized (outQueue) {
+			final int hlen = msg.length() + digits(p1) + digits(datalen) + 4;
+			final ByteBuffer buf = beginResponse(hlen, datalen + 2);
+			if (buf != null) {
+				put(buf, msg);
+				buf.put((byte) ' ');
+				put(buf, p1);
+				buf.put((byte) ' ');
+				put(buf, datalen);
+				crlf(buf);
+				queuePayload(ByteBuffer.wrap(data, 0, datalen));
+			}
+		}
+		endResponse();
+	}
+
+	public void responseJob(final String msg, final Job job) throws ClosedChannelException {
+		// MESSAGE <id> <bytes>\r\n<data>\r\n
+		final ByteBuffer body = job.openBody(); // outside outQueue lock (job monitor)
+		if (body == null) {
+			responseMessage(Constants.ERROR_NOT_FOUND);
+			return;
+		}
+		final int datalen = job.bodyLength;
+		if (log.isDebugEnabled())
+			log.debug(getName() + " RESPONSE: " + msg + " " + job.id + " " + datalen);
+		synchronized (outQueue) {
+			final int hlen = msg.length() + digits(job.id) + digits(datalen) + 4;
+			final ByteBuffer buf = beginResponse(hlen, datalen + 2);
+			if (buf != null) {
+				put(buf, msg);
+				buf.put((byte) ' ');
+				put(buf, job.id);
+				buf.put((byte) ' ');
+				put(buf, datalen);
+				crlf(buf);
+				queuePayload(body);
+				if (job.bodyRef >= 0) {
+					// Off-heap body written straight from slab, freed after write
+					outBodies.addLast(body);
+					outBodyRefs.addLast(Long.valueOf(job.bodyRef));
+				}
+			} else if (job.bodyRef >= 0) {
+				store.release(job.bodyRef);
+			}
+		}
+		endResponse();
+	}
+
+	/**
+	 * Queue payload after header: header, body and trailer are written with a gathering write,
+	 * payload is never copied (called with outQueue locked)
+	 * 
+	 * @param body
+	 */
+	private void queuePayload(final ByteBuffer body) {
+		sealOutput();
+		outQueue.addLast(body);
+		crlf(outBuffer(2));
 	}
 
 	private static final char[] HEX_CHARS = "0123456789abcdef".toCharArray();
@@ -16,12 +16,9 @@ package org.javastack.chainmq;
 
 import java.io.IOException;
 import java.nio.channels.ClosedChannelException;
-import java.util.HashMap;
-import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import org.apache.log4j.Logger;
 
 /**
  * Command Handler
@@ -29,7 +26,8 @@ import org.apache.log4j.Logger;
  * @author Guillermo Grandes / guillermo.grandes[at]gmail.com
  */
 public abstract class CommandHandler {
-	private static final HashMap<String, CommandHandler> commandHandlers = new HashMap<String, CommandHandler>();
+	private static final CommandTable commandHandlers = new CommandTable();
+	StripedCounter calls = null; // cmd-* stat, set on register
 
 	static {
 		registerCommand("put", new PutCommand());
@@ -62,8 +60,25 @@ public abstract class CommandHandler {
 		return commandHandlers.get(cmd);
 	}
 
-	private static void registerCommand(final String cmd, final CommandHandler commandHandler) {
-		commandHandlers.put(cmd, commandHandler);
+	/**
+	 * Resolve handler from the verb (first token) bytes, without allocation
+	 * 
+	 * @param tokens
+	 * @return handler or null if unknown
+	 */
+	public static CommandHandler getHandler(final RequestTokens tokens) {
+		return commandHandlers.get(tokens, 0);
+	}
+
+	/**
+	 * Register (or replace) a command
+	 * 
+	 * @param cmd
+	 * @param commandHandler
+	 */
+	public static void registerCommand(final String cmd, final CommandHandler commandHandler) {
+		commandHandler.calls = ServerStats.getInstance().getCommandCounter(cmd);
+		commandHandlers.register(cmd, commandHandler);
 	}
 
 	/**
@@ -135,7 +150,7 @@ public abstract class CommandHandler {
 	 * Return true if payload is expected
 	 * 
 	 * @return
-	 * @see #getDataLength(ClientHandler, List)
+	 * @see #getDataLength(ClientHandler, RequestTokens)
 	 */
 	public boolean expectedData() {
 		return false;
@@ -151,7 +166,7 @@ public abstract class CommandHandler {
 	 *             , ClosedChannelException
 	 * @see #expectedData()
 	 */
-	public int getDataLength(final ClientHandler clientHandler, final List<String> tokens)
+	public int getDataLength(final ClientHandler clientHandler, final RequestTokens tokens)
 			throws HandlerException, ClosedChannelException {
 		return -1;
 	}
@@ -165,7 +180,7 @@ public abstract class CommandHandler {
 	 * @throws HandlerException
 	 *             , IOException
 	 */
-	public void handle(final ClientHandler clientHandler, final List<String> tokens) throws HandlerException,
+	public void handle(final ClientHandler clientHandler, final RequestTokens tokens) throws HandlerException,
 			IOException {
 		throw new HandlerException(Constants.ERROR_INTERNAL_ERROR);
 	}
@@ -177,11 +192,16 @@ public abstract class CommandHandler {
 	 * @param tokens
 	 *            (command, arg1, arg2,...)
 	 * @param buf
+	 *            data on heap (null if stored off-heap)
+	 * @param bufRef
+	 *            handle of data in {@link SlabBodyStore} (-1 if on heap), ownership is transferred
+	 * @param len
+	 *            length of data
 	 * @throws HandlerException
 	 *             , IOException
 	 */
-	public void handle(final ClientHandler clientHandler, final List<String> tokens, final byte[] buf)
-			throws HandlerException, IOException {
+	public void handle(final ClientHandler clientHandler, final RequestTokens tokens, final byte[] buf,
+			final long bufRef, final int len) throws HandlerException, IOException {
 		throw new HandlerException(Constants.ERROR_INTERNAL_ERROR);
 	}
 
@@ -201,9 +221,9 @@ public abstract class CommandHandler {
 		}
 
 		@Override
-		public int getDataLength(final ClientHandler clientHandler, final List<String> tokens)
+		public int getDataLength(final ClientHandler clientHandler, final RequestTokens tokens)
 				throws HandlerException, ClosedChannelException {
-			final int len = Utils.parseInteger(tokens.get(4));
+			final int len = (int) tokens.getLong(4, Integer.MAX_VALUE);
 			if (len < 0) {
 				throw new HandlerException(Constants.ERROR_BAD_FORMAT);
 			}
@@ -211,17 +231,21 @@ public abstract class CommandHandler {
 		}
 
 		@Override
-		public void handle(final ClientHandler clientHandler, final List<String> tokens, final byte[] data)
-				throws HandlerException, IOException {
-			final String tubeName = clientHandler.getContext().getCurrentTube();
-			Tube tube = TubeMapper.getInstance().getTubeOrCreate(tubeName);
-			final long prio = Utils.parseLong(tokens.get(1), Constants.MAX_INT_32BITS);
-			final long delay = Utils.parseLong(tokens.get(2), Constants.MAX_INT_32BITS);
-			final long ttr = Math.max(1, Utils.parseLong(tokens.get(3), Constants.MAX_INT_32BITS));
-			if ((prio < 0) || (delay < 0) || (ttr < 0))
+		public void handle(final ClientHandler clientHandler, final RequestTokens tokens, final byte[] data,
+				final long dataRef, final int len) throws HandlerException, IOException {
+			final ClientContext context = clientHandler.getContext();
+			context.markProducer();
+			final Tube tube = context.getUsedTube();
+			final long prio = tokens.getLong(1, Constants.MAX_INT_32BITS);
+			final long delay = tokens.getLong(2, Constants.MAX_INT_32BITS);
+			final long ttr = Math.max(1, tokens.getLong(3, Constants.MAX_INT_32BITS));
+			if ((prio < 0) || (delay < 0) || (ttr < 0)) {
+				if (dataRef >= 0)
+					SlabBodyStore.getInstance().release(dataRef);
 				throw new HandlerException(Constants.ERROR_BAD_FORMAT);
+			}
 			// INSERTED <id>\r\n
-			final Job job = tube.newJob(prio, delay, ttr, data);
+			final Job job = tube.newJob(prio, delay, ttr, data, dataRef, len);
 			job.doNew();
 			clientHandler.responseMessage(Constants.RES_INSERTED, job.id);
 		}
@@ -235,13 +259,12 @@ public abstract class CommandHandler {
 		}
 
 		@Override
-		public void handle(final ClientHandler clientHandler, final List<String> tokens)
+		public void handle(final ClientHandler clientHandler, final RequestTokens tokens)
 				throws HandlerException, IOException {
-			final String tubeName = tokens.get(1);
+			final String tubeName = tokens.getString(1);
 			if (!checkValidName(tubeName))
 				throw new HandlerException(Constants.ERROR_BAD_FORMAT);
 			clientHandler.getContext().setCurrentTube(tubeName);
-			TubeMapper.getInstance().getTubeOrCreate(tubeName);
 			clientHandler.responseMessage(Constants.RES_USING, tubeName);
 		}
 	}
@@ -254,7 +277,7 @@ public abstract class CommandHandler {
 		}
 
 		@Override
-		public void handle(final ClientHandler clientHandler, final List<String> tokens)
+		public void handle(final ClientHandler clientHandler, final RequestTokens tokens)
 				throws HandlerException, IOException {
 			reserveWithTimeout(clientHandler, -1);
 		}
@@ -268,9 +291,9 @@ public abstract class CommandHandler {
 		}
 
 		@Override
-		public void handle(final ClientHandler clientHandler, final List<String> tokens)
+		public void handle(final ClientHandler clientHandler, final RequestTokens tokens)
 				throws HandlerException, IOException {
-			final long seconds = Utils.parseLong(tokens.get(1), Constants.MAX_INT_32BITS);
+			final long seconds = tokens.getLong(1, Constants.MAX_INT_32BITS);
 			if (seconds < 0)
 				throw new HandlerException(Constants.ERROR_BAD_FORMAT);
 			reserveWithTimeout(clientHandler, seconds);
@@ -279,6 +302,7 @@ public abstract class CommandHandler {
 		void reserveWithTimeout(final ClientHandler clientHandler, final long seconds)
 				throws HandlerException, IOException {
 			final ClientContext context = clientHandler.getContext();
+			context.markWorker();
 			final AsyncTaskTracker tracker = context.getTracker();
 			final long seqReq = tracker.newTaskId();
 			
@@ -296,66 +320,70 @@ public abstract class CommandHandler {
 				reserveTaskCancelatorMsg = Constants.ERROR_TIMED_OUT;
 				reserveTaskCancelatorDelay = timedOut;
 			}
-			//
-			if (reserveTaskCancelatorDelay > 0) {
-				final String msg = reserveTaskCancelatorMsg;
-				final AsyncTaskRunner reserveTaskCancelator = new AsyncTaskRunner(seqReq, clientHandler) {
-					@Override
-					public void processAsyncRequest() {
-						try {
-							if (!taskMarkDone())
-								return;
-							clientHandler.responseMessage(msg);
-						} catch (ClosedChannelException e) {
-							e.printStackTrace(System.out);
-						}
-					}
-				};
-				tracker.submitAsyncTask(reserveTaskCancelator, reserveTaskCancelatorDelay);
-			}
-			
-			// Callback for: NOT_FOUND / RESERVED 
+
+			// Callback for: RESERVED / DEADLINE_SOON / TIMED_OUT
+			final String msg = reserveTaskCancelatorMsg;
 			final Tube.AsyncUpdateCallBack cbClient = new Tube.AsyncUpdateCallBack(seqReq, clientHandler) {
 				@Override
-				public boolean newData(final Tube tube) {
-					if (taskIsDone())
-						return false;
-					final Job job = tube.get();
-					if (job == null) {
-						if (seconds == 0) {
-							if (!taskMarkDone())
-								return false;
-							try {
-								clientHandler.responseMessage(Constants.ERROR_NOT_FOUND);
-							} catch (ClosedChannelException e) {
-								e.printStackTrace(System.out);
-							}
-							return true;
-						}
-						// register callback
-						tube.pushCallback(this);
-						return true;
-					}
+				public void reserved(final Job job) {
 					context.jobReserve(job);
-					if (!taskMarkDone()) {
-						// Ignore
-						Logger.getLogger(getClass()).warn("Ignored already ACKed seq=" + sequence);
-						return false;
+					try {
+						// RESERVED <id> <bytes>\r\n<data>\r\n
+						clientHandler.responseJob(Constants.RES_RESERVED, job);
+					} catch (ClosedChannelException e) {
+						e.printStackTrace(System.out);
 					}
+				}
 
+				@Override
+				protected void expire(final long now) {
+					if (!taskMarkDone())
+						return;
+					cancelWait();
 					try {
-						// RESERVED <id> <bytes>\r\n<data>\r\n
-						clientHandler.responseMessage(Constants.RES_RESERVED, job.id, job.body.length, job.body);
+						clientHandler.responseMessage(msg);
 					} catch (ClosedChannelException e) {
 						e.printStackTrace(System.out);
 					}
-					return true;
 				}
 			};
-			final Set<String> tubes = context.getWatchedTubes();
-			for (final String tubeName : tubes) {
-				final Tube tube = TubeMapper.getInstance().getTubeOrCreate(tubeName);
-				cbClient.newData(tube);
+			if (reserveTaskCancelatorDelay > 0)
+				tracker.submitAsyncTask(cbClient, reserveTaskCancelatorDelay);
+
+			// Take best (prio, id) ready job of watched tubes
+			context.setWaiter(cbClient);
+			final Set<Tube> watched = context.getWatchedTubes();
+			for (int tries = watched.size(); tries > 0; tries--) {
+				final Tube tube = context.bestReadyTube();
+				if (tube == null)
+					break;
+				final Job job;
+				synchronized (tube) {
+					job = cbClient.claim(tube);
+				}
+				if (job != null) {
+					cbClient.reserved(job);
+					return;
+				}
+			}
+			// NOT_FOUND
+			if (seconds == 0) {
+				if (cbClient.taskMarkDone())
+					clientHandler.responseMessage(Constants.ERROR_NOT_FOUND);
+				return;
+			}
+			// Wait in every watched tube (unless a job arrived meanwhile)
+			for (final Tube tube : watched) {
+				final Job job;
+				synchronized (tube) {
+					job = cbClient.claim(tube);
+					if (job == null)
+						tube.addWaiter(cbClient);
+				}
+				if (job != null) {
+					cbClient.reserved(job);
+					return;
+				}
 			}
 		}
 	}
@@ -368,20 +396,19 @@ public abstract class CommandHandler {
 		}
 
 		@Override
-		public void handle(final ClientHandler clientHandler, final List<String> tokens)
+		public void handle(final ClientHandler clientHandler, final RequestTokens tokens)
 				throws HandlerException, IOException {
-			final long id = Utils.parseLong(tokens.get(1), Constants.MAX_INT_32BITS);
+			final long id = tokens.getLong(1, Constants.MAX_JOB_ID);
 			if (id < 0)
 				throw new HandlerException(Constants.ERROR_BAD_FORMAT);
 			final Job job = TubeMapper.getInstance().getJob(id);
 			// NOT_FOUND\r\n
 			if (job == null)
 				throw new HandlerException(Constants.ERROR_NOT_FOUND);
-			final ClientContext context = clientHandler.getContext();
-			if (job.isReserved() && !job.isReserved(context))
+			if (!job.setDeleted(clientHandler.getContext()))
 				throw new HandlerException(Constants.ERROR_NOT_FOUND);
 			// DELETED
-			job.setDeleted();
+			job.tube.statsDelete();
 			clientHandler.responseMessage(Constants.RES_DELETED);
 		}
 	}
@@ -394,22 +421,20 @@ public abstract class CommandHandler {
 		}
 
 		@Override
-		public void handle(final ClientHandler clientHandler, final List<String> tokens)
+		public void handle(final ClientHandler clientHandler, final RequestTokens tokens)
 				throws HandlerException, IOException {
-			final long id = Utils.parseLong(tokens.get(1), Constants.MAX_INT_32BITS);
-			final long prio = Utils.parseLong(tokens.get(2), Constants.MAX_INT_32BITS);
-			final long delay = Utils.parseLong(tokens.get(3), Constants.MAX_INT_32BITS);
+			final long id = tokens.getLong(1, Constants.MAX_JOB_ID);
+			final long prio = tokens.getLong(2, Constants.MAX_INT_32BITS);
+			final long delay = tokens.getLong(3, Constants.MAX_INT_32BITS);
 			if ((id < 0) || (prio < 0) || (delay < 0))
 				throw new HandlerException(Constants.ERROR_BAD_FORMAT);
 			final Job job = TubeMapper.getInstance().getJob(id);
 			// NOT_FOUND\r\n
 			if (job == null)
 				throw new HandlerException(Constants.ERROR_NOT_FOUND);
-			final ClientContext context = clientHandler.getContext();
-			if (!job.isReserved(context))
+			if (!job.doRelease(clientHandler.getContext(), prio, delay))
 				throw new HandlerException(Constants.ERROR_NOT_FOUND);
 			// RELEASED
-			job.doRelease(prio, delay);
 			clientHandler.responseMessage(Constants.RES_RELEASED);
 		}
 	}
@@ -422,21 +447,19 @@ public abstract class CommandHandler {
 		}
 
 		@Override
-		public void handle(final ClientHandler clientHandler, final List<String> tokens)
+		public void handle(final ClientHandler clientHandler, final RequestTokens tokens)
 				throws HandlerException, IOException {
-			final long id = Utils.parseLong(tokens.get(1), Constants.MAX_INT_32BITS);
-			final long prio = Utils.parseLong(tokens.get(2), Constants.MAX_INT_32BITS);
+			final long id = tokens.getLong(1, Constants.MAX_JOB_ID);
+			final long prio = tokens.getLong(2, Constants.MAX_INT_32BITS);
 			if ((id < 0) || (prio < 0))
 				throw new HandlerException(Constants.ERROR_BAD_FORMAT);
 			final Job job = TubeMapper.getInstance().getJob(id);
 			// NOT_FOUND\r\n
 			if (job == null)
 				throw new HandlerException(Constants.ERROR_NOT_FOUND);
-			final ClientContext context = clientHandler.getContext();
-			if (!job.isReserved(context))
+			if (!job.setBuried(clientHandler.getContext(), prio))
 				throw new HandlerException(Constants.ERROR_NOT_FOUND);
 			// BURIED
-			job.setBuried(prio);
 			clientHandler.responseMessage(Constants.RES_BURIED);
 		}
 	}
@@ -449,20 +472,18 @@ public abstract class CommandHandler {
 		}
 
 		@Override
-		public void handle(final ClientHandler clientHandler, final List<String> tokens)
+		public void handle(final ClientHandler clientHandler, final RequestTokens tokens)
 				throws HandlerException, IOException {
-			final long id = Utils.parseLong(tokens.get(1), Constants.MAX_INT_32BITS);
+			final long id = tokens.getLong(1, Constants.MAX_JOB_ID);
 			if (id < 0)
 				throw new HandlerException(Constants.ERROR_BAD_FORMAT);
 			final Job job = TubeMapper.getInstance().getJob(id);
 			// NOT_FOUND\r\n
 			if (job == null)
 				throw new HandlerException(Constants.ERROR_NOT_FOUND);
-			final ClientContext context = clientHandler.getContext();
-			if (!job.isReserved(context))
+			if (!clientHandler.getContext().jobReserve(job))
 				throw new HandlerException(Constants.ERROR_NOT_FOUND);
 			// TOUCHED
-			context.jobReserve(job);
 			clientHandler.responseMessage(Constants.RES_TOUCHED);
 		}
 	}
@@ -475,15 +496,14 @@ public abstract class CommandHandler {
 		}
 
 		@Override
-		public void handle(final ClientHandler clientHandler, final List<String> tokens)
+		public void handle(final ClientHandler clientHandler, final RequestTokens tokens)
 				throws HandlerException, IOException {
-			final String tubeName = tokens.get(1);
+			final String tubeName = tokens.getString(1);
 			if (!checkValidName(tubeName))
 				throw new HandlerException(Constants.ERROR_BAD_FORMAT);
 			// WATCHING
 			ClientContext context = clientHandler.getContext();
 			context.addWatchedTube(tubeName);
-			TubeMapper.getInstance().getTubeOrCreate(tubeName);
 			clientHandler.responseMessage(Constants.RES_WATCHING, context.getWatchedTubes().size());
 		}
 	}
@@ -496,9 +516,9 @@ public abstract class CommandHandler {
 		}
 
 		@Override
-		public void handle(final ClientHandler clientHandler, final List<String> tokens)
+		public void handle(final ClientHandler clientHandler, final RequestTokens tokens)
 				throws HandlerException, IOException {
-			final String tubeName = tokens.get(1);
+			final String tubeName = tokens.getString(1);
 			if (!checkValidName(tubeName))
 				throw new HandlerException(Constants.ERROR_BAD_FORMAT);
 			// WATCHING
@@ -516,19 +536,18 @@ public abstract class CommandHandler {
 		}
 
 		@Override
-		public void handle(final ClientHandler clientHandler, final List<String> tokens)
+		public void handle(final ClientHandler clientHandler, final RequestTokens tokens)
 				throws HandlerException, IOException {
-			final long id = Utils.parseLong(tokens.get(1), Constants.MAX_INT_32BITS);
+			final long id = tokens.getLong(1, Constants.MAX_JOB_ID);
 			if (id < 0)
 				throw new HandlerException(Constants.ERROR_BAD_FORMAT);
-			final String tubeName = clientHandler.getContext().getCurrentTube();
-			final Tube tube = TubeMapper.getInstance().getTubeOrCreate(tubeName);
+			final Tube tube = clientHandler.getContext().getUsedTube();
 			final Job job = tube.peek(id);
 			// NOT_FOUND\r\n
 			if (job == null)
 				throw new HandlerException(Constants.ERROR_NOT_FOUND);
 			// FOUND <id> <bytes>\r\n<data>\r\n
-			clientHandler.responseMessage(Constants.RES_FOUND, job.id, job.body.length, job.body);
+			clientHandler.responseJob(Constants.RES_FOUND, job);
 		}
 	}
 
@@ -540,17 +559,16 @@ public abstract class CommandHandler {
 		}
 
 		@Override
-		public void handle(final ClientHandler clientHandler, final List<String> tokens)
+		public void handle(final ClientHandler clientHandler, final RequestTokens tokens)
 				throws HandlerException, IOException {
 			final ClientContext context = clientHandler.getContext();
-			final String tubeName = context.getCurrentTube();
-			final Tube tube = TubeMapper.getInstance().getTubeOrCreate(tubeName);
+			final Tube tube = context.getUsedTube();
 			final Job job = tube.peek();
 			// NOT_FOUND\r\n
 			if (job == null)
 				throw new HandlerException(Constants.ERROR_NOT_FOUND);
 			// FOUND <id> <bytes>\r\n<data>\r\n
-			clientHandler.responseMessage(Constants.RES_FOUND, job.id, job.body.length, job.body);
+			clientHandler.responseJob(Constants.RES_FOUND, job);
 		}
 	}
 
@@ -562,17 +580,16 @@ public abstract class CommandHandler {
 		}
 
 		@Override
-		public void handle(final ClientHandler clientHandler, final List<String> tokens)
+		public void handle(final ClientHandler clientHandler, final RequestTokens tokens)
 				throws HandlerException, IOException {
 			final ClientContext context = clientHandler.getContext();
-			final String tubeName = context.getCurrentTube();
-			final Tube tube = TubeMapper.getInstance().getTubeOrCreate(tubeName);
+			final Tube tube = context.getUsedTube();
 			final Job job = tube.peekDelayed();
 			// NOT_FOUND\r\n
 			if (job == null)
 				throw new HandlerException(Constants.ERROR_NOT_FOUND);
 			// FOUND <id> <bytes>\r\n<data>\r\n
-			clientHandler.responseMessage(Constants.RES_FOUND, job.id, job.body.length, job.body);
+			clientHandler.responseJob(Constants.RES_FOUND, job);
 		}
 	}
 
@@ -584,17 +601,16 @@ public abstract class CommandHandler {
 		}
 
 		@Override
-		public void handle(final ClientHandler clientHandler, final List<String> tokens)
+		public void handle(final ClientHandler clientHandler, final RequestTokens tokens)
 				throws HandlerException, IOException {
 			final ClientContext context = clientHandler.getContext();
-			final String tubeName = context.getCurrentTube();
-			final Tube tube = TubeMapper.getInstance().getTubeOrCreate(tubeName);
+			final Tube tube = context.getUsedTube();
 			final Job job = tube.peekBuried();
 			// NOT_FOUND\r\n
 			if (job == null)
 				throw new HandlerException(Constants.ERROR_NOT_FOUND);
 			// FOUND <id> <bytes>\r\n<data>\r\n
-			clientHandler.responseMessage(Constants.RES_FOUND, job.id, job.body.length, job.body);
+			clientHandler.responseJob(Constants.RES_FOUND, job);
 		}
 	}
 
@@ -606,14 +622,13 @@ public abstract class CommandHandler {
 		}
 
 		@Override
-		public void handle(final ClientHandler clientHandler, final List<String> tokens)
+		public void handle(final ClientHandler clientHandler, final RequestTokens tokens)
 				throws HandlerException, IOException {
-			final long bound = Utils.parseLong(tokens.get(1), Constants.MAX_INT_32BITS);
+			final long bound = tokens.getLong(1, Constants.MAX_INT_32BITS);
 			if (bound < 0)
 				throw new HandlerException(Constants.ERROR_BAD_FORMAT);
 			final ClientContext context = clientHandler.getContext();
-			final String tubeName = context.getCurrentTube();
-			final Tube tube = TubeMapper.getInstance().getTubeOrCreate(tubeName);
+			final Tube tube = context.getUsedTube();
 			final long count = tube.kick(bound);
 			// KICKED <count>\r\n
 			clientHandler.responseMessage(Constants.RES_KICKED, count);
@@ -628,9 +643,9 @@ public abstract class CommandHandler {
 		}
 
 		@Override
-		public void handle(final ClientHandler clientHandler, final List<String> tokens)
+		public void handle(final ClientHandler clientHandler, final RequestTokens tokens)
 				throws HandlerException, IOException {
-			final long id = Utils.parseLong(tokens.get(1), Constants.MAX_INT_32BITS);
+			final long id = tokens.getLong(1, Constants.MAX_JOB_ID);
 			if (id < 0)
 				throw new HandlerException(Constants.ERROR_BAD_FORMAT);
 			final Job job = TubeMapper.getInstance().getJob(id);
@@ -653,14 +668,13 @@ public abstract class CommandHandler {
 		}
 
 		@Override
-		public void handle(final ClientHandler clientHandler, final List<String> tokens)
+		public void handle(final ClientHandler clientHandler, final RequestTokens tokens)
 				throws HandlerException, IOException {
-			final long id = Utils.parseLong(tokens.get(1), Constants.MAX_INT_32BITS);
+			final long id = tokens.getLong(1, Constants.MAX_JOB_ID);
 			if (id < 0)
 				throw new HandlerException(Constants.ERROR_BAD_FORMAT);
 			//
-			final String tubeName = clientHandler.getContext().getCurrentTube();
-			final Tube tube = TubeMapper.getInstance().getTubeOrCreate(tubeName);
+			final Tube tube = clientHandler.getContext().getUsedTube();
 			final Job job = tube.peek(id);
 			// NOT_FOUND\r\n
 			if (job == null)
@@ -680,9 +694,9 @@ public abstract class CommandHandler {
 		}
 
 		@Override
-		public void handle(final ClientHandler clientHandler, final List<String> tokens)
+		public void handle(final ClientHandler clientHandler, final RequestTokens tokens)
 				throws HandlerException, IOException {
-			final String tubeName = tokens.get(1);
+			final String tubeName = tokens.getString(1);
 			if (!checkValidName(tubeName))
 				throw new HandlerException(Constants.ERROR_BAD_FORMAT);
 			final Tube tube = TubeMapper.getInstance().getTubeIfExist(tubeName);
@@ -703,17 +717,9 @@ public abstract class CommandHandler {
 		}
 
 		@Override
-		public void handle(final ClientHandler clientHandler, final List<String> tokens)
+		public void handle(final ClientHandler clientHandler, final RequestTokens tokens)
 				throws HandlerException, IOException {
-			// TODO
-			final Map<String, Object> map = new LinkedHashMap<String, Object>() {
-				private static final long serialVersionUID = 42L;
-				{
-					put("pid", Integer.toString(Utils.getPid()));
-					put("uptime", Integer.toString(clientHandler.getServer().getUptime()));
-					put("hostname", Utils.getHostname());
-				}
-			};
+			final Map<String, Object> map = ServerStats.getInstance().getStats(clientHandler.getServer());
 			final String res = SimpleYAML.emitter(map);
 			final byte[] buf = res.getBytes("UTF-8");
 			clientHandler.responseMessage(Constants.RES_OK, buf.length, buf);
@@ -728,7 +734,7 @@ public abstract class CommandHandler {
 		}
 
 		@Override
-		public void handle(final ClientHandler clientHandler, final List<String> tokens)
+		public void handle(final ClientHandler clientHandler, final RequestTokens tokens)
 				throws HandlerException, IOException {
 			// OK <bytes>\r\n<data>\r\n
 			final List<String> tubes = TubeMapper.getInstance().getTubeList();
@@ -746,7 +752,7 @@ public abstract class CommandHandler {
 		}
 
 		@Override
-		public void handle(final ClientHandler clientHandler, final List<String> tokens)
+		public void handle(final ClientHandler clientHandler, final RequestTokens tokens)
 				throws HandlerException, IOException {
 			// USING
 			clientHandler.responseMessage(Constants.RES_USING, clientHandler.getContext().getCurrentTube());
@@ -761,12 +767,11 @@ public abstract class CommandHandler {
 		}
 
 		@Override
-		public void handle(final ClientHandler clientHandler, final List<String> tokens)
+		public void handle(final ClientHandler clientHandler, final RequestTokens tokens)
 				throws HandlerException, IOException {
 			// OK <bytes>\r\n<data>\r\n
 			final ClientContext context = clientHandler.getContext();
-			final Set<String> tubes = context.getWatchedTubes();
-			final String list = SimpleYAML.emitter(tubes);
+			final String list = SimpleYAML.emitter(context.getWatchedTubeNames());
 			final byte[] buf = list.getBytes("UTF-8");
 			clientHandler.responseMessage(Constants.RES_OK, buf.length, buf);
 		}
@@ -780,9 +785,9 @@ public abstract class CommandHandler {
 		}
 
 		@Override
-		public void handle(final ClientHandler clientHandler, final List<String> tokens)
+		public void handle(final ClientHandler clientHandler, final RequestTokens tokens)
 				throws HandlerException, IOException {
-			clientHandler.doClose();
+			clientHandler.queueClose();
 		}
 	}
 
@@ -794,12 +799,12 @@ public abstract class CommandHandler {
 		}
 
 		@Override
-		public void handle(final ClientHandler clientHandler, final List<String> tokens)
+		public void handle(final ClientHandler clientHandler, final RequestTokens tokens)
 				throws HandlerException, IOException {
-			final String tubeName = tokens.get(1);
+			final String tubeName = tokens.getString(1);
 			if (!checkValidName(tubeName))
 				throw new HandlerException(Constants.ERROR_BAD_FORMAT);
-			final long delay = Utils.parseLong(tokens.get(2), Constants.MAX_INT_32BITS);
+			final long delay = tokens.getLong(2, Constants.MAX_INT_32BITS);
 			if (delay < 0)
 				throw new HandlerException(Constants.ERROR_BAD_FORMAT);
 			// PAUSED
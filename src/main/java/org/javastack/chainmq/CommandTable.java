@@ -0,0 +1,169 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.javastack.chainmq;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Command dispatch table, resolve verbs directly from request bytes.
+ *
+ * The table is sized on every register so that all verbs hash to distinct slots (perfect hash):
+ * lookup is one hash over the token bytes plus one compare, without allocation. Registration
+ * publishes a new immutable snapshot, lookups never lock.
+ *
+ * @author Guillermo Grandes / guillermo.grandes[at]gmail.com
+ */
+public final class CommandTable {
+	private static final Charset charsetLatin1 = Charset.forName("ISO-8859-1");
+	private static final int MAX_TABLE_SIZE = 4096;
+	private static final int FNV_OFFSET = 0x811C9DC5;
+	private static final int FNV_PRIME = 0x01000193;
+	private volatile Snapshot snapshot = new Snapshot(new byte[0][], new CommandHandler[0]);
+
+	/**
+	 * Register or replace a command
+	 *
+	 * @param cmd
+	 * @param handler
+	 */
+	public synchronized void register(final String cmd, final CommandHandler handler) {
+		final byte[] verb = cmd.getBytes(charsetLatin1);
+		final Snapshot old = snapshot;
+		int n = 0;
+		for (int i = 0; i < old.keys.length; i++) {
+			if ((old.keys[i] != null) && !equals(old.keys[i], verb))
+				n++;
+		}
+		final byte[][] verbs = new byte[n + 1][];
+		final CommandHandler[] handlers = new CommandHandler[n + 1];
+		n = 0;
+		for (int i = 0; i < old.keys.length; i++) {
+			if ((old.keys[i] != null) && !equals(old.keys[i], verb)) {
+				verbs[n] = old.keys[i];
+				handlers[n++] = old.values[i];
+			}
+		}
+		verbs[n] = verb;
+		handlers[n] = handler;
+		snapshot = new Snapshot(verbs, handlers);
+	}
+
+	/**
+	 * Resolve handler from token bytes
+	 *
+	 * @param tokens
+	 * @param i index of token
+	 * @return handler or null if unknown
+	 */
+	public CommandHandler get(final RequestTokens tokens, final int i) {
+		final Snapshot t = snapshot;
+		final ByteBuffer buf = tokens.buffer();
+		final int off = tokens.offset(i);
+		final int end = off + tokens.length(i);
+		int h = FNV_OFFSET;
+		for (int j = off; j < end; j++) {
+			h = (h ^ (buf.get(j) & 0xFF)) * FNV_PRIME;
+		}
+		int slot = h & t.mask;
+		while (true) {
+			final byte[] key = t.keys[slot];
+			if (key == null)
+				return null;
+			if (key.length == (end - off)) {
+				int j = 0;
+				while ((j < key.length) && (key[j] == buf.get(off + j)))
+					j++;
+				if (j == key.length)
+					return t.values[slot];
+			}
+			slot = (slot + 1) & t.mask;
+		}
+	}
+
+	/**
+	 * Resolve handler from String
+	 *
+	 * @param cmd
+	 * @return handler or null if unknown
+	 */
+	public CommandHandler get(final String cmd) {
+		final Snapshot t = snapshot;
+		final byte[] verb = cmd.getBytes(charsetLatin1);
+		int slot = hash(verb) & t.mask;
+		while (true) {
+			final byte[] key = t.keys[slot];
+			if (key == null)
+				return null;
+			if (equals(key, verb))
+				return t.values[slot];
+			slot = (slot + 1) & t.mask;
+		}
+	}
+
+	static int hash(final byte[] verb) {
+		int h = FNV_OFFSET;
+		for (int j = 0; j < verb.length; j++) {
+			h = (h ^ (verb[j] & 0xFF)) * FNV_PRIME;
+		}
+		return h;
+	}
+
+	private static boolean equals(final byte[] a, final byte[] b) {
+		if (a.length != b.length)
+			return false;
+		for (int i = 0; i < a.length; i++) {
+			if (a[i] != b[i])
+				return false;
+		}
+		return true;
+	}
+
+	private static final class Snapshot {
+		final byte[][] keys;
+		final CommandHandler[] values;
+		final int mask;
+
+		Snapshot(final byte[][] verbs, final CommandHandler[] handlers) {
+			// Find smallest table without collisions (fallback to linear probing)
+			int size = 2;
+			while (size < (verbs.length << 1))
+				size <<= 1;
+			while ((size < MAX_TABLE_SIZE) && !collisionFree(verbs, size - 1))
+				size <<= 1;
+			this.keys = new byte[size][];
+			this.values = new CommandHandler[size];
+			this.mask = size - 1;
+			for (int i = 0; i < verbs.length; i++) {
+				int slot = hash(verbs[i]) & mask;
+				while (keys[slot] != null)
+					slot = (slot + 1) & mask;
+				keys[slot] = verbs[i];
+				values[slot] = handlers[i];
+			}
+		}
+
+		private static boolean collisionFree(final byte[][] verbs, final int mask) {
+			final boolean[] used = new boolean[mask + 1];
+			for (int i = 0; i < verbs.length; i++) {
+				final int slot = hash(verbs[i]) & mask;
+				if (used[slot])
+					return false;
+				used[slot] = true;
+			}
+			return true;
+		}
+	}
+}
@@ -22,9 +22,14 @@ package org.javastack.chainmq;
 public class Constants {
 	public static final int PROTO_READ_LINE = 0;
 	public static final int PROTO_READ_BODY = 1;
+	public static final int PROTO_SKIP_BODY = 2;
 
 	public static final int REQUEST_MAX_TOKENS = 5;
 	public static final long MAX_INT_32BITS = 4294967295L;
+	public static final long MAX_JOB_ID = Long.MAX_VALUE;
+	public static final int MAX_IOV = 64; // buffers per gathering write
+	public static final int DEFAULT_MAX_JOB_SIZE = 65535;
+	public static final long URGENT_PRIO = 1024; // jobs with lower priority are urgent
 
 	public static final int SAFETY_MARGIN = 1000; // 1 second (millis)
 	
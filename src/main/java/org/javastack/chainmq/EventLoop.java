@@ -0,0 +1,230 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.javastack.chainmq;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Event Loop (one Selector per thread)
+ *
+ * @author Guillermo Grandes / guillermo.grandes[at]gmail.com
+ */
+public class EventLoop implements Runnable {
+	private static final Logger log = Logger.getLogger(EventLoop.class);
+	private final ConcurrentLinkedQueue<SocketChannel> pendingRegister = new ConcurrentLinkedQueue<SocketChannel>();
+	private final ConcurrentLinkedQueue<ClientHandler> pendingFlushRemote = new ConcurrentLinkedQueue<ClientHandler>();
+	private final ArrayList<ClientHandler> pendingFlush = new ArrayList<ClientHandler>();
+	private final ConcurrentLinkedQueue<Runnable> pendingTasks = new ConcurrentLinkedQueue<Runnable>();
+	final ByteBuffer[] iov = new ByteBuffer[Constants.MAX_IOV]; // gathering writes scratch
+	private final Server srv;
+	private final AsyncTaskTracker tracker;
+	private final String name;
+	private final Selector s;
+	private volatile Thread thread = null;
+
+	public EventLoop(final Server srv, final String name) throws IOException {
+		this.srv = srv;
+		this.tracker = new AsyncTaskTracker(this);
+		this.name = name;
+		this.s = Selector.open();
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public Selector getSelector() {
+		return s;
+	}
+
+	/**
+	 * Check if caller is running in this loop thread
+	 * 
+	 * @return
+	 */
+	public boolean inLoop() {
+		return (Thread.currentThread() == thread);
+	}
+
+	/**
+	 * Queue connection for flush of output. Inside the loop, flushes are coalesced at end of
+	 * iteration; from other threads (async tasks, other loops) the selector is woken up.
+	 * 
+	 * @param cli
+	 */
+	void requestFlush(final ClientHandler cli) {
+		if (inLoop()) {
+			pendingFlush.add(cli);
+		} else {
+			pendingFlushRemote.offer(cli);
+			s.wakeup();
+		}
+	}
+
+	/**
+	 * Run task in this loop, out of the locks held by the caller (executed at end of current
+	 * iteration, or wakes up the selector if called from other thread)
+	 * 
+	 * @param task
+	 */
+	public void execute(final Runnable task) {
+		pendingTasks.offer(task);
+		if (!inLoop())
+			s.wakeup();
+	}
+
+	private void processPendingTasks() {
+		Runnable task = null;
+		while ((task = pendingTasks.poll()) != null) {
+			try {
+				task.run();
+			} catch (Exception e) {
+				log.error("Exception in task: " + e.toString(), e);
+			}
+		}
+	}
+
+	private void processPendingFlush() {
+		ClientHandler cli = null;
+		while ((cli = pendingFlushRemote.poll()) != null) {
+			pendingFlush.add(cli);
+		}
+		// Flush can queue more responses (resumed input), list can grow while iterating
+		for (int i = 0; i < pendingFlush.size(); i++) {
+			flush(pendingFlush.get(i));
+		}
+		pendingFlush.clear();
+	}
+
+	private void flush(final ClientHandler ctx) {
+		try {
+			ctx.flush();
+		} catch (Exception e) {
+			closeOnException(ctx, e);
+		}
+	}
+
+	/**
+	 * Close client after a failed read/write. Peer disconnects (EOF, reset, broken pipe) are
+	 * routine and only logged in debug; other failures are errors.
+	 * 
+	 * @param ctx
+	 * @param e
+	 */
+	private static void closeOnException(final ClientHandler ctx, final Exception e) {
+		if (isPeerDisconnect(e)) {
+			if (log.isDebugEnabled())
+				log.debug(ctx.getName() + " Disconnected by peer: " + e.toString());
+		} else {
+			log.error(e.getClass().getSimpleName() + ": " + e.toString(), e);
+		}
+		ctx.doClose();
+	}
+
+	private static boolean isPeerDisconnect(final Exception e) {
+		if (e instanceof ClosedChannelException)
+			return true;
+		if (!(e instanceof IOException))
+			return false;
+		final String msg = e.getMessage();
+		return ((msg != null) && (msg.contains("Connection reset") || msg.contains("Broken pipe")));
+	}
+
+	/**
+	 * Hand a new accepted connection to this loop (called from acceptor thread)
+	 *
+	 * @param sc
+	 */
+	public void register(final SocketChannel sc) {
+		pendingRegister.offer(sc);
+		s.wakeup();
+	}
+
+	private void processPendingRegister() {
+		SocketChannel sc = null;
+		while ((sc = pendingRegister.poll()) != null) {
+			try {
+				sc.configureBlocking(false);
+				final ClientHandler cli = new ClientHandler(srv, this, sc, tracker);
+				log.info(cli.getName() + " New connection (" + name + ")");
+				cli.registered(sc.register(s, SelectionKey.OP_READ, cli));
+			} catch (IOException e) {
+				log.error("IOException registering connection: " + e.toString(), e);
+				try {
+					sc.close();
+				} catch (IOException ign) {
+				}
+			}
+		}
+	}
+
+	@Override
+	public void run() {
+		log.info("[" + Thread.currentThread().getName() + "] Thread start");
+		thread = Thread.currentThread();
+		while (true) {
+			try {
+				if (pendingTasks.isEmpty()) {
+					s.select(tracker.nextTimeout(System.currentTimeMillis(), 1000));
+				} else {
+					s.selectNow(); // Tasks queued by this loop
+				}
+			} catch (IOException e) {
+				log.error("IOException in select(): " + e.toString(), e);
+			}
+			processPendingRegister();
+			tracker.runExpired(System.currentTimeMillis());
+			processPendingTasks();
+			processPendingFlush();
+			final Set<SelectionKey> keys = s.selectedKeys();
+			final Iterator<SelectionKey> i = keys.iterator();
+			while (i.hasNext()) {
+				final SelectionKey key = i.next();
+				final ClientHandler ctx = (ClientHandler) key.attachment();
+				try {
+					if (key.isValid() && key.isReadable()) {
+						ctx.doRead();
+					}
+					if (key.isValid() && key.isWritable()) {
+						ctx.doWrite();
+					}
+				} catch (Exception e) {
+					closeOnException(ctx, e);
+				}
+				i.remove();
+			}
+			processPendingTasks();
+			processPendingFlush();
+		}
+	}
+
+	public void start() {
+		final Thread loopThread = new Thread(this);
+		loopThread.setName(name);
+		loopThread.start();
+	}
+
+}
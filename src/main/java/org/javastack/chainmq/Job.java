@@ -14,6 +14,7 @@
  */
 package org.javastack.chainmq;
 
+import java.nio.ByteBuffer;
 import java.util.Comparator;
 import java.util.LinkedHashMap;
 import java.util.Map;
@@ -23,43 +24,89 @@ import java.util.Map;
  * 
  * @author Guillermo Grandes / guillermo.grandes[at]gmail.com
  */
-public class Job {
+public class Job extends TimerNode {
 	public static final PriorityComparator priorityComparator = new PriorityComparator();
 	public static final ReadyTimeComparator readyTimeComparator = new ReadyTimeComparator();
 	public static final ReserveExpireComparator reserveExpireComparator = new ReserveExpireComparator();
+	private static final Binlog binlog = Binlog.getInstance();
 	//
-	public transient final JobStats stats = new JobStats();
 	public transient final Tube tube;
 	public transient ClientContext clientContext = null;
 	public transient long reserveExpire;
 	public transient JobState state = JobState.NEW;
+	transient int heapIndex = -1; // position in JobHeap (owned by Tube)
+	transient int binlogFile = 0; // binlog file of put record (guarded by Binlog)
 	public final long id;
 	public final long created;
 	public long prio;
-	public long delay;
 	public long readyTime;
-	public final long ttr;
-	public final byte[] body;
+	private final int ttr; // seconds (uint32)
+	public final byte[] body; // null if off-heap
+	public transient final long bodyRef; // handle in SlabBodyStore or -1
+	public final int bodyLength;
+	// Stats (guarded by monitor)
+	int reserves = 0;
+	int timeouts = 0;
+	int releases = 0;
+	int buries = 0;
+	int kicks = 0;
 
 	public Job(final Tube tube, final long id, final long prio, final long delay, final long ttr,
 			final byte[] body) {
+		this(tube, id, prio, delay, ttr, body, -1, ((body == null) ? 0 : body.length));
+	}
+
+	public Job(final Tube tube, final long id, final long prio, final long delay, final long ttr,
+			final byte[] body, final long bodyRef, final int bodyLength) {
 		this.tube = tube;
-		this.id = id & 0xFFFFFFFF; // Uint32
+		this.id = id;
 		this.created = System.currentTimeMillis();
-		this.prio = prio & 0xFFFFFFFF; // Uint32
-		this.delay = delay;
-		this.readyTime = fromDelayToReadyTime(delay);
-		this.ttr = Math.max(1, ttr);
+		this.prio = prio; // Uint32 (checked by protocol)
+		this.readyTime = created + (Math.max(0, delay) * 1000);
+		this.ttr = (int) Math.max(1, ttr);
 		this.body = body;
+		this.bodyRef = bodyRef;
+		this.bodyLength = bodyLength;
 	}
 
-	private void setPrio(final long prio) {
+	/**
+	 * Job recovered from binlog
+	 */
+	Job(final Tube tube, final long id, final long prio, final long created, final long readyTime,
+			final long ttr, final byte[] body, final long bodyRef, final int bodyLength) {
+		this.tube = tube;
+		this.id = id;
+		this.created = created;
 		this.prio = prio;
+		this.readyTime = readyTime;
+		this.ttr = (int) Math.max(1, ttr);
+		this.body = body;
+		this.bodyRef = bodyRef;
+		this.bodyLength = bodyLength;
+	}
+
+	public long getTtr() {
+		return (ttr & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * Body for output: off-heap bodies get a reference that must be returned with
+	 * {@link SlabBodyStore#release(long)} after write
+	 * 
+	 * @return buffer or null if deleted
+	 */
+	public synchronized ByteBuffer openBody() {
+		if (state == JobState.DELETED)
+			return null;
+		if (bodyRef < 0)
+			return ByteBuffer.wrap(body, 0, bodyLength);
+		final SlabBodyStore store = SlabBodyStore.getInstance();
+		store.retain(bodyRef);
+		return store.buffer(bodyRef, bodyLength);
 	}
 
-	private void setDelay(final long delay) {
-		this.delay = delay;
-		this.readyTime = fromDelayToReadyTime(delay);
+	private void setPrio(final long prio) {
+		this.prio = prio;
 	}
 
 	public synchronized JobState getState() {
@@ -71,7 +118,7 @@ public class Job {
 	}
 
 	private void updateReserveExpire() {
-		reserveExpire = (System.currentTimeMillis() + (ttr * 1000));
+		reserveExpire = (System.currentTimeMillis() + (getTtr() * 1000));
 	}
 
 	public synchronized boolean checkReserveExpired() {
@@ -90,28 +137,81 @@ public class Job {
 		default:
 			return;
 		}
-		if (delay > 0) {
-			setDelayed(delay);
+		binlog.put(this);
+		if (readyTime > created) {
+			setDelayedUntil(readyTime);
 		} else {
 			setReady();
 		}
 	}
 
-	public synchronized void doRelease(final long prio, final long delay) {
-		// Source can be: reserved
+	/**
+	 * Job recovered from binlog: buried, delayed (until readyTime) or ready
+	 * 
+	 * @param buried
+	 */
+	synchronized void doRecover(final boolean buried) {
 		switch (state) {
-		case RESERVED:
-			stats.releases++;
+		case NEW:
 			break;
 		default:
 			return;
 		}
+		if (buried) {
+			tube.addJob(this);
+			state = JobState.BURIED;
+			tube.addBuried(this);
+		} else if (readyTime > System.currentTimeMillis()) {
+			setDelayedUntil(readyTime);
+		} else {
+			setReady();
+		}
+	}
+
+	/**
+	 * Binlog compaction: write job again at head of binlog if its put record is in given segment
+	 * 
+	 * @param index
+	 */
+	synchronized void doMigrate(final int index) {
+		switch (state) {
+		case NEW:
+		case DELETED:
+			return;
+		default:
+			break;
+		}
+		binlog.migrate(this, index);
+	}
+
+	/**
+	 * Release job reserved by client
+	 * 
+	 * @param clientContext owner of reservation
+	 * @param prio
+	 * @param delay
+	 * @return false if job is not reserved by client
+	 */
+	public synchronized boolean doRelease(final ClientContext clientContext, final long prio,
+			final long delay) {
+		// Source can be: reserved-by-owner
+		switch (state) {
+		case RESERVED:
+			if (this.clientContext != clientContext)
+				return false;
+			releases++;
+			break;
+		default:
+			return false;
+		}
 		setPrio(prio);
 		if (delay > 0) {
 			setDelayed(delay);
 		} else {
 			setReady();
 		}
+		binlog.release(this);
+		return true;
 	}
 
 	public synchronized boolean doKick() {
@@ -119,15 +219,38 @@ public class Job {
 		switch (state) {
 		case BURIED:
 		case DELAYED:
-			stats.kicks++;
+			kicks++;
 			break;
 		default:
 			return false;
 		}
 		setReady();
+		binlog.kick(this);
 		return true;
 	}
 
+	/**
+	 * Timer reached (delay or TTR)
+	 */
+	@Override
+	protected synchronized void expire(final long now) {
+		switch (state) {
+		case DELAYED:
+			if (readyTime <= now)
+				setReady();
+			break;
+		case RESERVED:
+			if (reserveExpire <= now) {
+				timeouts++;
+				ServerStats.getInstance().jobTimeouts.increment();
+				setReady();
+			}
+			break;
+		default:
+			break;
+		}
+	}
+
 	public synchronized void setReady() {
 		// Source can be: new/reserved/buried/delayed
 		switch (state) {
@@ -138,7 +261,6 @@ public class Job {
 			tube.removeReserve(this);
 			clientContext.removeReserve(this);
 			clientContext = null;
-			stats.timeouts++;
 			break;
 		case BURIED:
 			tube.removeBuried(this);
@@ -153,50 +275,80 @@ public class Job {
 		tube.addReady(this);
 	}
 
-	public synchronized boolean isReserved() {
-		return (state == JobState.RESERVED);
-	}
-
-	public synchronized boolean isReserved(final ClientContext clientContext) {
-		return ((state == JobState.RESERVED) && (this.clientContext == clientContext));
+	/**
+	 * Return job reserved by client to ready (client disconnected)
+	 * 
+	 * @param clientContext owner of reservation
+	 * @return false if job is not reserved by client
+	 */
+	public synchronized boolean releaseReserved(final ClientContext clientContext) {
+		if ((state != JobState.RESERVED) || (this.clientContext != clientContext))
+			return false;
+		setReady();
+		return true;
 	}
 
-	public synchronized void setReserved(final ClientContext clientContext) {
-		// Source can be: ready/reserved (touch)
+	/**
+	 * Reserve job (ready) or renew reservation (touch)
+	 * 
+	 * @param clientContext
+	 * @return false if job is not ready nor reserved by client
+	 */
+	public synchronized boolean setReserved(final ClientContext clientContext) {
+		// Source can be: ready/reserved-by-owner (touch)
 		switch (state) {
 		case RESERVED:
-			stats.reserves++;
+			if (this.clientContext != clientContext)
+				return false;
+			reserves++;
 			clientContext.removeReserve(this);
 			break;
 		case READY:
 			this.clientContext = clientContext;
 			break;
 		default:
-			return;
+			return false;
 		}
 		state = JobState.RESERVED;
 		updateReserveExpire();
 		clientContext.addReserve(this);
 		tube.addReserve(this);
+		return true;
 	}
 
-	public synchronized void setBuried(final long prio) {
-		// Source can be: reserved
+	/**
+	 * Bury job reserved by client
+	 * 
+	 * @param clientContext owner of reservation
+	 * @param prio
+	 * @return false if job is not reserved by client
+	 */
+	public synchronized boolean setBuried(final ClientContext clientContext, final long prio) {
+		// Source can be: reserved-by-owner
 		switch (state) {
 		case RESERVED:
-			stats.buries++;
+			if (this.clientContext != clientContext)
+				return false;
+			buries++;
+			tube.removeReserve(this);
 			clientContext.removeReserve(this);
-			clientContext = null;
+			this.clientContext = null;
 			break;
 		default:
-			return;
+			return false;
 		}
 		state = JobState.BURIED;
 		setPrio(prio);
 		tube.addBuried(this);
+		binlog.bury(this);
+		return true;
 	}
 
 	public synchronized void setDelayed(final long delay) {
+		setDelayedUntil(fromDelayToReadyTime(delay));
+	}
+
+	private void setDelayedUntil(final long readyTime) {
 		// Source can be: new/reserved
 		switch (state) {
 		case NEW:
@@ -211,20 +363,29 @@ public class Job {
 			return;
 		}
 		state = JobState.DELAYED;
-		setDelay(delay);
+		this.readyTime = readyTime;
 		tube.addDelayed(this);
 	}
 
-	public synchronized void setDeleted() {
+	/**
+	 * Delete job
+	 * 
+	 * @param clientContext client requesting delete (reserved job only by its owner)
+	 * @return false if job was already deleted, is being reserved or reserved by other client
+	 */
+	public synchronized boolean setDeleted(final ClientContext clientContext) {
 		// Source can be: ready/reserved-by-owner/buried/delayed
 		switch (state) {
 		case READY:
-			tube.removeReady(this);
+			if (!tube.removeReady(this))
+				return false; // Claimed by a reserve, not yet marked
 			break;
 		case RESERVED:
+			if (this.clientContext != clientContext)
+				return false;
 			tube.removeReserve(this);
 			clientContext.removeReserve(this);
-			clientContext = null;
+			this.clientContext = null;
 			break;
 		case BURIED:
 			tube.removeBuried(this);
@@ -233,10 +394,14 @@ public class Job {
 			tube.removeDelayed(this);
 			break;
 		default:
-			return;
+			return false;
 		}
 		state = JobState.DELETED;
 		tube.removeJob(this);
+		binlog.delete(this);
+		if (bodyRef >= 0)
+			SlabBodyStore.getInstance().release(bodyRef);
+		return true;
 	}
 
 	public synchronized Map<String, Object> getStats() {
@@ -254,13 +419,12 @@ public class Job {
 		map.put("pri", Long.toString(prio));
 		map.put("age", Long.toString((now - created) / 1000));
 		map.put("time-left", Long.toString(Math.max(timeLeft, 0) / 1000));
-		// TODO
-		map.put("file", "0");
-		map.put("reserves", Integer.toString(stats.reserves));
-		map.put("timeouts", Integer.toString(stats.timeouts));
-		map.put("releases", Integer.toString(stats.releases));
-		map.put("buries", Integer.toString(stats.buries));
-		map.put("kicks", Integer.toString(stats.kicks));
+		map.put("file", Integer.toString(binlogFile));
+		map.put("reserves", Integer.toString(reserves));
+		map.put("timeouts", Integer.toString(timeouts));
+		map.put("releases", Integer.toString(releases));
+		map.put("buries", Integer.toString(buries));
+		map.put("kicks", Integer.toString(kicks));
 		return map;
 	}
 
@@ -328,12 +492,4 @@ public class Job {
 			return "invalid";
 		}
 	}
-
-	public static class JobStats {
-		public volatile int reserves = 0;
-		public volatile int timeouts = 0;
-		public volatile int releases = 0;
-		public volatile int buries = 0;
-		public volatile int kicks = 0;
-	}
 }
@@ -0,0 +1,131 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.javastack.chainmq;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Indexed 4-ary heap of jobs. Each job stores its own position ({@link Job#heapIndex}), so
+ * removal of any job is O(log n) without search and inserts don't allocate.
+ *
+ * A job can be only in one heap at a time (ready and delayed are exclusive states).
+ * Not thread-safe, guarded by the owner (Tube).
+ *
+ * @author Guillermo Grandes / guillermo.grandes[at]gmail.com
+ */
+public final class JobHeap {
+	public static final int ARITY = 4;
+	private static final int MIN_CAPACITY = 16;
+	private final Comparator<Job> comparator;
+	private Job[] heap = new Job[MIN_CAPACITY];
+	private int size = 0;
+
+	public JobHeap(final Comparator<Job> comparator) {
+		this.comparator = comparator;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return (size == 0);
+	}
+
+	public Job peek() {
+		return ((size == 0) ? null : heap[0]);
+	}
+
+	public void add(final Job job) {
+		if (size == heap.length)
+			heap = Arrays.copyOf(heap, size << 1);
+		siftUp(size++, job);
+	}
+
+	public Job poll() {
+		if (size == 0)
+			return null;
+		final Job top = heap[0];
+		removeAt(0);
+		return top;
+	}
+
+	/**
+	 * Remove job
+	 *
+	 * @param job
+	 * @return true if job was in this heap
+	 */
+	public boolean remove(final Job job) {
+		final int i = job.heapIndex;
+		if ((i < 0) || (i >= size) || (heap[i] != job))
+			return false;
+		removeAt(i);
+		return true;
+	}
+
+	private void removeAt(final int i) {
+		heap[i].heapIndex = -1;
+		final int last = --size;
+		final Job moved = heap[last];
+		heap[last] = null;
+		if (i != last) {
+			if ((i > 0) && (comparator.compare(moved, heap[(i - 1) / ARITY]) < 0)) {
+				siftUp(i, moved);
+			} else {
+				siftDown(i, moved);
+			}
+		}
+		if ((heap.length > MIN_CAPACITY) && (size < (heap.length >>> 2)))
+			heap = Arrays.copyOf(heap, heap.length >>> 1);
+	}
+
+	private void siftUp(int i, final Job job) {
+		while (i > 0) {
+			final int parent = (i - 1) / ARITY;
+			final Job p = heap[parent];
+			if (comparator.compare(job, p) >= 0)
+				break;
+			heap[i] = p;
+			p.heapIndex = i;
+			i = parent;
+		}
+		heap[i] = job;
+		job.heapIndex = i;
+	}
+
+	private void siftDown(int i, final Job job) {
+		while (true) {
+			final int first = (i * ARITY) + 1;
+			if (first >= size)
+				break;
+			final int end = Math.min(first + ARITY, size);
+			int min = first;
+			for (int c = first + 1; c < end; c++) {
+				if (comparator.compare(heap[c], heap[min]) < 0)
+					min = c;
+			}
+			final Job m = heap[min];
+			if (comparator.compare(m, job) >= 0)
+				break;
+			heap[i] = m;
+			m.heapIndex = i;
+			i = min;
+		}
+		heap[i] = job;
+		job.heapIndex = i;
+	}
+}
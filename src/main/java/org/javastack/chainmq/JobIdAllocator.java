@@ -0,0 +1,51 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.javastack.chainmq;
+
+/**
+ * Job id allocator: one shared {@link SequenceNumber}, a single atomic increment per job.
+ * 
+ * Ready jobs of the same priority are served by id, so ids must follow arrival order across all
+ * event loops (FIFO within a priority); this also keeps the sorted insert of {@link ReadyQueue}
+ * an append for new jobs.
+ * 
+ * @author Guillermo Grandes / guillermo.grandes[at]gmail.com
+ */
+public final class JobIdAllocator {
+	private final SequenceNumber seq;
+
+	public JobIdAllocator(final SequenceNumber seq) {
+		this.seq = seq;
+	}
+
+	/**
+	 * Get new job id
+	 * 
+	 * @return id (greater than 0)
+	 */
+	public long nextId() {
+		final long id = seq.nextLong();
+		return ((id == 0L) ? seq.nextLong() : id); // Skip 0 on overflow
+	}
+
+	/**
+	 * Next ids will be greater than given one
+	 * 
+	 * @param id
+	 */
+	public void advanceTo(final long id) {
+		seq.advanceTo(id);
+	}
+}
@@ -0,0 +1,160 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.javastack.chainmq;
+
+/**
+ * Job index by id: open addressing (linear probing) over primitive arrays, without boxing or
+ * per-entry nodes. Removal uses backward shift, no tombstones.
+ *
+ * Not thread-safe, guarded by the owner.
+ *
+ * @author Guillermo Grandes / guillermo.grandes[at]gmail.com
+ */
+public final class LongJobMap implements JobStorage {
+	private static final int MIN_CAPACITY = 16;
+	private static final long EMPTY = 0L; // id 0 is kept out of table
+	private long[] keys;
+	private Job[] values;
+	private int mask;
+	private int size = 0;
+	private Job zeroValue = null;
+
+	public LongJobMap() {
+		this(MIN_CAPACITY);
+	}
+
+	public LongJobMap(final int expected) {
+		int cap = MIN_CAPACITY;
+		while (cap < (expected + (expected >>> 1)))
+			cap <<= 1;
+		allocate(cap);
+	}
+
+	private void allocate(final int capacity) {
+		keys = new long[capacity];
+		values = new Job[capacity];
+		mask = capacity - 1;
+	}
+
+	// Scramble: sequential ids would form one long probe chain
+	private static int hash(final long key) {
+		final long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+
+	@Override
+	public void putJob(final long id, final Job job) {
+		if (id == EMPTY) {
+			if (zeroValue == null)
+				size++;
+			zeroValue = job;
+			return;
+		}
+		int slot = hash(id) & mask;
+		while (true) {
+			final long k = keys[slot];
+			if (k == EMPTY) {
+				keys[slot] = id;
+				values[slot] = job;
+				// Load factor 0.75
+				if (++size > ((mask + 1) - ((mask + 1) >>> 2)))
+					resize((mask + 1) << 1);
+				return;
+			}
+			if (k == id) {
+				values[slot] = job;
+				return;
+			}
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	@Override
+	public Job getJob(final long id) {
+		if (id == EMPTY)
+			return zeroValue;
+		int slot = hash(id) & mask;
+		while (true) {
+			final long k = keys[slot];
+			if (k == id)
+				return values[slot];
+			if (k == EMPTY)
+				return null;
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	@Override
+	public void removeJob(final long id) {
+		if (id == EMPTY) {
+			if (zeroValue != null)
+				size--;
+			zeroValue = null;
+			return;
+		}
+		int slot = hash(id) & mask;
+		while (true) {
+			final long k = keys[slot];
+			if (k == EMPTY)
+				return;
+			if (k == id)
+				break;
+			slot = (slot + 1) & mask;
+		}
+		size--;
+		// Backward shift: move up entries of the probe chain
+		int hole = slot;
+		int i = slot;
+		while (true) {
+			i = (i + 1) & mask;
+			final long k = keys[i];
+			if (k == EMPTY)
+				break;
+			final int home = hash(k) & mask;
+			// Entry can fill the hole if its home is not in (hole, i]
+			if (((i - home) & mask) >= ((i - hole) & mask)) {
+				keys[hole] = k;
+				values[hole] = values[i];
+				hole = i;
+			}
+		}
+		keys[hole] = EMPTY;
+		values[hole] = null;
+		final int cap = mask + 1;
+		if ((cap > MIN_CAPACITY) && (size < (cap >>> 3)))
+			resize(cap >>> 1);
+	}
+
+	@Override
+	public int totalJobs() {
+		return size;
+	}
+
+	private void resize(final int capacity) {
+		final long[] oldKeys = keys;
+		final Job[] oldValues = values;
+		allocate(capacity);
+		for (int i = 0; i < oldKeys.length; i++) {
+			final long k = oldKeys[i];
+			if (k == EMPTY)
+				continue;
+			int slot = hash(k) & mask;
+			while (keys[slot] != EMPTY)
+				slot = (slot + 1) & mask;
+			keys[slot] = k;
+			values[slot] = oldValues[i];
+		}
+	}
+}
@@ -0,0 +1,246 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.javastack.chainmq;
+
+/**
+ * Ready queue of a tube, ordered by (prio, id) like {@link Job#priorityComparator}.
+ *
+ * While the tube uses few distinct priorities, jobs are kept in a FIFO list per priority (sorted
+ * by id, new jobs are appended) and a small sorted array of priorities: put and reserve are O(1).
+ * When more than {@link #MAX_BUCKETS} priorities are in use, jobs move to a {@link JobHeap} until
+ * the queue is empty again.
+ *
+ * Lists are linked with the {@link TimerNode} links of the job (a ready job is never in a timer
+ * wheel). Not thread-safe, guarded by the owner (Tube).
+ *
+ * @author Guillermo Grandes / guillermo.grandes[at]gmail.com
+ */
+public final class ReadyQueue {
+	public static final int MAX_BUCKETS = 16;
+	private static final int BUCKETED = -2; // Job.heapIndex mark of job linked in a bucket
+	private final Bucket[] buckets = new Bucket[MAX_BUCKETS]; // sorted by prio
+	private int bucketCount = 0;
+	private JobHeap heap = null; // heap mode
+	private int size = 0;
+	private int urgent = 0; // prio < Constants.URGENT_PRIO
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return (size == 0);
+	}
+
+	/**
+	 * Jobs with priority lower than {@link Constants#URGENT_PRIO}
+	 *
+	 * @return
+	 */
+	public int urgent() {
+		return urgent;
+	}
+
+	public boolean isHeapMode() {
+		return (heap != null);
+	}
+
+	public void add(final Job job) {
+		if (job.prio < Constants.URGENT_PRIO)
+			urgent++;
+		if (heap == null) {
+			final Bucket b = getBucket(job.prio);
+			if (b != null) {
+				b.add(job);
+				size++;
+				return;
+			}
+			toHeap();
+		}
+		heap.add(job);
+		size++;
+	}
+
+	public Job peek() {
+		if (heap != null)
+			return heap.peek();
+		for (int i = 0; i < bucketCount; i++) {
+			if (buckets[i].head != null)
+				return buckets[i].head;
+		}
+		return null;
+	}
+
+	public Job poll() {
+		final Job job = peek();
+		if (job != null)
+			remove(job);
+		return job;
+	}
+
+	/**
+	 * Remove job
+	 *
+	 * @param job
+	 * @return true if job was in queue
+	 */
+	public boolean remove(final Job job) {
+		if (heap != null) {
+			if (!heap.remove(job))
+				return false;
+			if (job.prio < Constants.URGENT_PRIO)
+				urgent--;
+			if (--size == 0)
+				heap = null; // Back to buckets
+			return true;
+		}
+		if (job.heapIndex != BUCKETED)
+			return false;
+		final Bucket b = findBucket(job.prio);
+		if (b == null)
+			return false;
+		b.unlink(job);
+		if (job.prio < Constants.URGENT_PRIO)
+			urgent--;
+		size--;
+		return true;
+	}
+
+	private Bucket findBucket(final long prio) {
+		for (int i = 0; i < bucketCount; i++) {
+			final Bucket b = buckets[i];
+			if (b.prio == prio)
+				return b;
+			if (b.prio > prio)
+				break;
+		}
+		return null;
+	}
+
+	/**
+	 * Get or create bucket for priority
+	 *
+	 * @param prio
+	 * @return bucket or null if too many priorities
+	 */
+	private Bucket getBucket(final long prio) {
+		int i = 0;
+		while ((i < bucketCount) && (buckets[i].prio < prio))
+			i++;
+		if ((i < bucketCount) && (buckets[i].prio == prio))
+			return buckets[i];
+		if (bucketCount == MAX_BUCKETS) {
+			purgeEmptyBuckets();
+			if (bucketCount == MAX_BUCKETS)
+				return null;
+			i = 0;
+			while ((i < bucketCount) && (buckets[i].prio < prio))
+				i++;
+		}
+		System.arraycopy(buckets, i, buckets, i + 1, bucketCount - i);
+		final Bucket b = new Bucket(prio);
+		buckets[i] = b;
+		bucketCount++;
+		return b;
+	}
+
+	private void purgeEmptyBuckets() {
+		int n = 0;
+		for (int i = 0; i < bucketCount; i++) {
+			if (buckets[i].head != null)
+				buckets[n++] = buckets[i];
+		}
+		for (int i = n; i < bucketCount; i++) {
+			buckets[i] = null;
+		}
+		bucketCount = n;
+	}
+
+	private void toHeap() {
+		heap = new JobHeap(Job.priorityComparator);
+		for (int i = 0; i < bucketCount; i++) {
+			final Bucket b = buckets[i];
+			Job job = null;
+			while ((job = b.head) != null) {
+				b.unlink(job);
+				heap.add(job);
+			}
+			buckets[i] = null;
+		}
+		bucketCount = 0;
+	}
+
+	private static final class Bucket {
+		final long prio;
+		Job head = null;
+		Job tail = null;
+		int size = 0;
+
+		Bucket(final long prio) {
+			this.prio = prio;
+		}
+
+		void add(final Job job) {
+			job.heapIndex = BUCKETED;
+			size++;
+			if ((tail == null) || (tail.id < job.id)) {
+				// Common case: new job
+				link(job, tail, null);
+			} else if (job.id < head.id) {
+				// Released/kicked old job
+				link(job, null, head);
+			} else {
+				// Sorted insert (from tail, ids are mostly increasing)
+				Job after = tail;
+				while (after.id > job.id)
+					after = (Job) after.prev;
+				link(job, after, (Job) after.next);
+			}
+		}
+
+		private void link(final Job job, final Job after, final Job before) {
+			job.prev = after;
+			job.next = before;
+			if (after == null) {
+				head = job;
+			} else {
+				after.next = job;
+			}
+			if (before == null) {
+				tail = job;
+			} else {
+				before.prev = job;
+			}
+		}
+
+		void unlink(final Job job) {
+			final Job p = (Job) job.prev;
+			final Job n = (Job) job.next;
+			if (p == null) {
+				head = n;
+			} else {
+				p.next = n;
+			}
+			if (n == null) {
+				tail = p;
+			} else {
+				n.prev = p;
+			}
+			job.prev = job.next = null;
+			job.heapIndex = -1;
+			size--;
+		}
+	}
+}
@@ -0,0 +1,184 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.javastack.chainmq;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Request Tokens (flyweight view over the input buffer, reused per connection)
+ *
+ * <pre>
+ * command arg1 arg2 ...\r\n
+ * </pre>
+ *
+ * Tokens are only valid while the underlying buffer region is not compacted.
+ *
+ * @author Guillermo Grandes / guillermo.grandes[at]gmail.com
+ */
+public final class RequestTokens {
+	private final int[] begin = new int[Constants.REQUEST_MAX_TOKENS + 1];
+	private final int[] end = new int[Constants.REQUEST_MAX_TOKENS + 1];
+	private ByteBuffer buf = null;
+	private int count = 0;
+
+	/**
+	 * Split line in tokens (separated by single space)
+	 *
+	 * @param buf
+	 * @param from offset of line
+	 * @param to offset of line end (CR)
+	 */
+	public void parse(final ByteBuffer buf, final int from, final int to) {
+		this.buf = buf;
+		count = 0;
+		int b = from;
+		for (int i = from; i < to; i++) {
+			if (buf.get(i) == ' ') {
+				if (!add(b, i))
+					return;
+				b = i + 1;
+			}
+		}
+		add(b, to);
+	}
+
+	private boolean add(final int b, final int e) {
+		if (count >= begin.length) {
+			count++; // Overflow mark
+			return false;
+		}
+		begin[count] = b;
+		end[count] = e;
+		count++;
+		return true;
+	}
+
+	/**
+	 * Move all tokens to a new base (after buffer compaction)
+	 *
+	 * @param buf
+	 * @param offset
+	 */
+	public void rebase(final ByteBuffer buf, final int offset) {
+		this.buf = buf;
+		final int c = Math.min(count, begin.length);
+		for (int i = 0; i < c; i++) {
+			begin[i] -= offset;
+			end[i] -= offset;
+		}
+	}
+
+	public void clear() {
+		buf = null;
+		count = 0;
+	}
+
+	public int size() {
+		return count;
+	}
+
+	public boolean isValid() {
+		return (count > 0) && (count <= Constants.REQUEST_MAX_TOKENS);
+	}
+
+	public int length(final int i) {
+		return end[i] - begin[i];
+	}
+
+	public ByteBuffer buffer() {
+		return buf;
+	}
+
+	public int offset(final int i) {
+		return begin[i];
+	}
+
+	public byte byteAt(final int i, final int off) {
+		return buf.get(begin[i] + off);
+	}
+
+	/**
+	 * Compare token with bytes
+	 *
+	 * @param i
+	 * @param value
+	 * @return true if equals
+	 */
+	public boolean equals(final int i, final byte[] value) {
+		final int len = length(i);
+		if (len != value.length)
+			return false;
+		final int b = begin[i];
+		for (int j = 0; j < len; j++) {
+			if (buf.get(b + j) != value[j])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Parse unsigned decimal number from token
+	 *
+	 * @param i
+	 * @param maxValue
+	 * @return number or -1 if invalid
+	 */
+	public long getLong(final int i, final long maxValue) {
+		final int b = begin[i];
+		final int e = end[i];
+		if (b >= e)
+			return -1;
+		long value = 0;
+		for (int j = b; j < e; j++) {
+			final int d = buf.get(j) - '0';
+			if ((d < 0) || (d > 9))
+				return -1;
+			if (value > ((maxValue - d) / 10))
+				return -1;
+			value = (value * 10) + d;
+		}
+		return value;
+	}
+
+	/**
+	 * Token as String (allocates, use only for names)
+	 *
+	 * @param i
+	 * @return
+	 */
+	public String getString(final int i) {
+		final int len = length(i);
+		final char[] chars = new char[len];
+		final int b = begin[i];
+		for (int j = 0; j < len; j++) {
+			chars[j] = (char) (buf.get(b + j) & 0xFF);
+		}
+		return new String(chars);
+	}
+
+	@Override
+	public String toString() {
+		final StringBuilder sb = new StringBuilder();
+		sb.append('[');
+		final int c = Math.min(count, begin.length);
+		for (int i = 0; i < c; i++) {
+			if (i > 0)
+				sb.append(',').append(' ');
+			sb.append(getString(i));
+		}
+		sb.append(']');
+		return sb.toString();
+	}
+}
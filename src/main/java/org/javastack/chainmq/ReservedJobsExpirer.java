@@ -14,74 +14,32 @@
  */
 package org.javastack.chainmq;
 
-import java.util.LinkedHashSet;
-import java.util.Set;
-import org.apache.log4j.Logger;
-import org.javastack.chainmq.Job.JobState;
-
-
 /**
- * Expirer for Reserved Jobs
+ * Expirer for Reserved Jobs (TTR). Reservations are timers in a shared wheel keyed by
+ * {@link Job#reserveExpire}; the thread sleeps until the next deadline.
  * 
  * @author Guillermo Grandes / guillermo.grandes[at]gmail.com
  */
-public class ReservedJobsExpirer implements Runnable {
-	private static final Logger log = Logger.getLogger(ReservedJobsExpirer.class);
-	private final Set<ClientContext> contextWatched = new LinkedHashSet<ClientContext>();
-
+public class ReservedJobsExpirer extends TimerService {
 	public ReservedJobsExpirer() {
+		super("ReservedJobsExpirer");
 	}
 
-	public void watch(final ClientContext context) {
-		synchronized (contextWatched) {
-			contextWatched.add(context);
-		}
+	/**
+	 * Schedule (or reschedule on touch) expiration of reserved job
+	 * 
+	 * @param job
+	 */
+	public void watch(final Job job) {
+		schedule(job, job.reserveExpire);
 	}
 
-	@Override
-	public void run() {
-		log.info("[" + Thread.currentThread().getName() + "] Thread start");
-		try {
-			final ClientContext[] type = new ClientContext[0];
-			ClientContext[] contexts = null;
-			Job job = null;
-			while (true) {
-				synchronized (contextWatched) {
-					contexts = contextWatched.toArray(type);
-				}
-				for (final ClientContext context : contexts) {
-					while ((job = context.jobReservedNearExpire()) != null) {
-						if (job.getState() == JobState.RESERVED) {
-							if (job.checkReserveExpired()) {
-								if (log.isDebugEnabled())
-									log.debug("Reserve expired job: " + job);
-								job.setReady();
-							} else {
-								break; // Next Context
-							}
-						}
-					}
-					synchronized (contextWatched) {
-						if (context.jobReservedNearExpire() == null)
-							contextWatched.remove(context);
-					}
-				}
-				Thread.sleep(100);
-			}
-		} catch (InterruptedException e) {
-			log.error("InterruptedException: " + e.toString(), e);
-		} catch (Exception e) {
-			log.error("Exception: " + e.toString(), e);
-		} finally {
-			log.info("[" + Thread.currentThread().getName() + "] Thread end");
-		}
+	/**
+	 * Cancel expiration of job (no longer reserved)
+	 * 
+	 * @param job
+	 */
+	public void unwatch(final Job job) {
+		cancel(job);
 	}
-
-	public void start() {
-		final Thread cleanerThread = new Thread(this);
-		cleanerThread.setName("ReservedJobsExpirer");
-		cleanerThread.setDaemon(true);
-		cleanerThread.start();
-	}
-
 }
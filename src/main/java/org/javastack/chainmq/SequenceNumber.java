@@ -15,6 +15,7 @@
 package org.javastack.chainmq;
 
 import java.text.ParseException;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.Logger;
 
@@ -26,7 +27,7 @@ import org.apache.log4j.Logger;
 public final class SequenceNumber {
 	private static final Logger log = Logger.getLogger(SequenceNumber.class);
 	private static final SequenceNumber singleton = new SequenceNumber();
-	private volatile long counter = 0L;
+	private final AtomicLong counter = new AtomicLong();
 	private volatile int overflows = 0;
 
 	/**
@@ -52,14 +53,33 @@ public final class SequenceNumber {
 	 * @return long value
 	 */
 	public final long nextLong() {
-		final long value = ((++counter) & Long.MAX_VALUE);
-		if (value == 0L) {
-			++overflows;
-			log.warn("Overflow counter incremented: " + overflows, new OverflowException());
-		}
+		final long value = (counter.incrementAndGet() & Long.MAX_VALUE);
+		if (value == 0L)
+			overflow();
 		return value;
 	}
 
+	/**
+	 * Skip values up to given one, next values are greater (ids recovered on startup)
+	 * 
+	 * @param value
+	 */
+	public final void advanceTo(final long value) {
+		while (true) {
+			final long current = counter.get();
+			if ((current >= value) || counter.compareAndSet(current, value))
+				return;
+		}
+	}
+
+	private final void overflow() {
+		final int count;
+		synchronized (this) {
+			count = ++overflows;
+		}
+		log.warn("Overflow counter incremented: " + count, new OverflowException());
+	}
+
 	public final int getOverflowCount() {
 		return overflows;
 	}
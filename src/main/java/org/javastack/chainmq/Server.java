@@ -17,14 +17,8 @@ package org.javastack.chainmq;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.nio.channels.ClosedChannelException;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.util.Iterator;
-import java.util.Set;
-import java.util.concurrent.Executors;
 import org.apache.log4j.Logger;
 
 /**
@@ -39,6 +33,10 @@ public class Server implements Runnable {
 
 	private InetAddress listenAddress = null;
 	private int listenPort = 11300;
+	private int eventLoops = Runtime.getRuntime().availableProcessors();
+	private long outputHighWater = 1024 * 1024;
+	private long outputHardLimit = 16 * 1024 * 1024;
+	private int maxJobSize = Constants.DEFAULT_MAX_JOB_SIZE;
 
 	public ReservedJobsExpirer getReservedJobsExpirer() {
 		return expirer;
@@ -60,6 +58,53 @@ public class Server implements Runnable {
 		this.listenPort = listenPort;
 	}
 
+	public int getEventLoops() {
+		return eventLoops;
+	}
+
+	public void setEventLoops(final int eventLoops) {
+		this.eventLoops = Math.max(1, eventLoops);
+	}
+
+	public long getOutputHighWater() {
+		return outputHighWater;
+	}
+
+	/**
+	 * Per connection output queue size that stops reading from client
+	 * 
+	 * @param outputHighWater bytes
+	 */
+	public void setOutputHighWater(final long outputHighWater) {
+		this.outputHighWater = Math.max(1, outputHighWater);
+	}
+
+	public long getOutputHardLimit() {
+		return outputHardLimit;
+	}
+
+	/**
+	 * Per connection output queue size that disconnects the client (slow consumer)
+	 * 
+	 * @param outputHardLimit bytes
+	 */
+	public void setOutputHardLimit(final long outputHardLimit) {
+		this.outputHardLimit = Math.max(1, outputHardLimit);
+	}
+
+	public int getMaxJobSize() {
+		return maxJobSize;
+	}
+
+	/**
+	 * Maximum size of job body (bigger puts are rejected with JOB_TOO_BIG)
+	 * 
+	 * @param maxJobSize bytes
+	 */
+	public void setMaxJobSize(final int maxJobSize) {
+		this.maxJobSize = Math.max(0, maxJobSize);
+	}
+
 	public int getUptime() {
 		return (int) ((System.currentTimeMillis() - started) / 1000);
 	}
@@ -77,6 +122,32 @@ public class Server implements Runnable {
 			} else if (arg.equals("-p")) {
 				final String value = args[++i];
 				srv.setListenPort(Integer.valueOf(value));
+			} else if (arg.equals("-t")) {
+				final String value = args[++i];
+				srv.setEventLoops(Integer.valueOf(value));
+			} else if (arg.equals("-w")) {
+				final String value = args[++i];
+				srv.setOutputHighWater(Long.valueOf(value));
+			} else if (arg.equals("-W")) {
+				final String value = args[++i];
+				srv.setOutputHardLimit(Long.valueOf(value));
+			} else if (arg.equals("-H")) {
+				final String value = args[++i];
+				SlabBodyStore.getInstance().setCapacity(Long.valueOf(value));
+			} else if (arg.equals("-z")) {
+				final String value = args[++i];
+				srv.setMaxJobSize(Integer.valueOf(value));
+			} else if (arg.equals("-b")) {
+				final String value = args[++i];
+				Binlog.getInstance().setDirectory(value);
+			} else if (arg.equals("-f")) {
+				final String value = args[++i];
+				Binlog.getInstance().setFsyncMillis(Integer.valueOf(value));
+			} else if (arg.equals("-F")) {
+				Binlog.getInstance().setFsyncMillis(Binlog.FSYNC_NEVER);
+			} else if (arg.equals("-s")) {
+				final String value = args[++i];
+				Binlog.getInstance().setMaxFileSize(Long.valueOf(value));
 			}
 		}
 		handleListenerSocket.start();
@@ -86,6 +157,15 @@ public class Server implements Runnable {
 		System.out.println("Options:");
 		System.out.println(" -l ADDR  listen on address (default is 0.0.0.0)");
 		System.out.println(" -p PORT  listen on port (default is 11300)");
+		System.out.println(" -t NUM   number of event loop threads (default is number of cpus)");
+		System.out.println(" -w BYTES output queue size that stops reading from a client (default is 1048576)");
+		System.out.println(" -W BYTES output queue size that disconnects a client (default is 16777216)");
+		System.out.println(" -z BYTES maximum job size (default is 65535)");
+		System.out.println(" -H BYTES off-heap memory for job bodies (default is 0, bodies on heap)");
+		System.out.println(" -b DIR   write-ahead binlog directory (default is none, jobs in memory only)");
+		System.out.println(" -f MS    fsync binlog at most every MS milliseconds, 0 always (default is 50)");
+		System.out.println(" -F       never fsync binlog");
+		System.out.println(" -s BYTES size of binlog segment files (default is 10485760)");
 		System.out.println(" -h       show this help");
 		System.exit(0);
 	}
@@ -93,68 +173,44 @@ public class Server implements Runnable {
 	@Override
 	public void run() {
 		//
-		AsyncTaskTracker tracker = null;
 		ServerSocketChannel ssc = null;
-		Selector s = null;
+		EventLoop[] loops = null;
 		started = System.currentTimeMillis();
 		expirer.start();
 		try {
+			final Binlog binlog = Binlog.getInstance();
+			if (binlog.getDirectory() != null) {
+				binlog.open();
+				Runtime.getRuntime().addShutdownHook(new Thread("BinlogShutdown") {
+					@Override
+					public void run() {
+						binlog.close();
+					}
+				});
+			}
 			ssc = ServerSocketChannel.open();
-			ssc.configureBlocking(false);
+			ssc.configureBlocking(true);
 			ssc.socket().bind(new InetSocketAddress(listenAddress, listenPort));
-			s = Selector.open();
-			ssc.register(s, SelectionKey.OP_ACCEPT);
-			tracker = new AsyncTaskTracker(Executors.newScheduledThreadPool(4));
+			loops = new EventLoop[eventLoops];
+			for (int i = 0; i < loops.length; i++) {
+				loops[i] = new EventLoop(this, "EventLoop-" + i);
+				loops[i].start();
+			}
 		} catch (IOException e) {
 			log.error("IOException before run(): " + e.toString(), e);
 			throw new RuntimeException(e);
 		}
-		log.info("Accepting connections on " + ssc.socket());
+		log.info("Accepting connections on " + ssc.socket() + " with " + loops.length + " event loops");
+		int next = 0;
 		while (true) {
-			// tracker.dumpStats();
 			try {
-				final int events = s.select(1000);
-				if (events <= 0) {
-					continue;
-				}
+				final SocketChannel sc = ssc.accept();
+				// Round-robin between event loops
+				loops[next].register(sc);
+				if (++next >= loops.length)
+					next = 0;
 			} catch (IOException e) {
-				log.error("IOException in select(): " + e.toString(), e);
-			}
-			final Set<SelectionKey> keys = s.selectedKeys();
-			final Iterator<SelectionKey> i = keys.iterator();
-			while (i.hasNext()) {
-				final SelectionKey key = i.next();
-				try {
-					if (key.isAcceptable()) {
-						final ServerSocketChannel schan = (ServerSocketChannel) key.channel();
-						final SocketChannel sc = schan.accept();
-						sc.configureBlocking(false);
-						final ClientHandler cli = new ClientHandler(this, s, sc, tracker);
-						log.info(cli.getName() + " New connection");
-						sc.register(s, SelectionKey.OP_READ, cli);
-					}
-					if (key.isValid() && key.isReadable()) {
-						final ClientHandler ctx = (ClientHandler) key.attachment();
-						ctx.doRead();
-					}
-					if (key.isValid() && key.isWritable()) {
-						final ClientHandler ctx = (ClientHandler) key.attachment();
-						ctx.doWrite();
-					}
-				} catch (ClosedChannelException e) {
-					log.error("ClosedChannelException: " + e.toString());
-					final ClientHandler ctx = (ClientHandler) key.attachment();
-					ctx.doClose();
-				} catch (IOException e) {
-					log.error("IOException: " + e.toString(), e);
-					final ClientHandler ctx = (ClientHandler) key.attachment();
-					ctx.doClose();
-				} catch (Exception e) {
-					log.error("Exception: " + e.toString(), e);
-					final ClientHandler ctx = (ClientHandler) key.attachment();
-					ctx.doClose();
-				}
-				i.remove();
+				log.error("IOException in accept(): " + e.toString(), e);
 			}
 		}
 	}
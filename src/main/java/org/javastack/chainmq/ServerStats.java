@@ -0,0 +1,121 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.javastack.chainmq;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Server wide statistics (stats command), updated without locks from commands, job transitions and
+ * connections.
+ *
+ * @author Guillermo Grandes / guillermo.grandes[at]gmail.com
+ */
+public final class ServerStats {
+	private static final ServerStats singleton = new ServerStats();
+	// Commands (cmd-*), registered at startup
+	private final Map<String, StripedCounter> commands = new LinkedHashMap<String, StripedCounter>();
+	// Jobs by state
+	public final StripedCounter jobsUrgent = new StripedCounter();
+	public final StripedCounter jobsReady = new StripedCounter();
+	public final StripedCounter jobsReserved = new StripedCounter();
+	public final StripedCounter jobsDelayed = new StripedCounter();
+	public final StripedCounter jobsBuried = new StripedCounter();
+	public final StripedCounter jobTimeouts = new StripedCounter();
+	public final StripedCounter totalJobs = new StripedCounter();
+	// Connections
+	public final StripedCounter connections = new StripedCounter();
+	public final StripedCounter producers = new StripedCounter();
+	public final StripedCounter workers = new StripedCounter();
+	public final StripedCounter waiting = new StripedCounter(); // blocked reserves
+	public final StripedCounter totalConnections = new StripedCounter();
+	private volatile String hostname = null;
+
+	public static ServerStats getInstance() {
+		return singleton;
+	}
+
+	/**
+	 * Get counter of command (created on first call)
+	 *
+	 * @param cmd
+	 * @return
+	 */
+	public synchronized StripedCounter getCommandCounter(final String cmd) {
+		StripedCounter counter = commands.get(cmd);
+		if (counter == null) {
+			counter = new StripedCounter();
+			commands.put(cmd, counter);
+		}
+		return counter;
+	}
+
+	/**
+	 * Hostname (resolved once)
+	 *
+	 * @return
+	 */
+	public String getHostname() {
+		String name = hostname;
+		if (name == null) {
+			name = Utils.getHostname();
+			hostname = name;
+		}
+		return name;
+	}
+
+	public Map<String, Object> getStats(final Server srv) {
+		final Map<String, Object> map = new LinkedHashMap<String, Object>();
+		map.put("current-jobs-urgent", jobsUrgent.toString());
+		map.put("current-jobs-ready", jobsReady.toString());
+		map.put("current-jobs-reserved", jobsReserved.toString());
+		map.put("current-jobs-delayed", jobsDelayed.toString());
+		map.put("current-jobs-buried", jobsBuried.toString());
+		synchronized (this) {
+			for (final Map.Entry<String, StripedCounter> e : commands.entrySet()) {
+				map.put("cmd-" + e.getKey(), e.getValue().toString());
+			}
+		}
+		map.put("job-timeouts", jobTimeouts.toString());
+		map.put("total-jobs", totalJobs.toString());
+		map.put("max-job-size", Integer.toString(srv.getMaxJobSize()));
+		map.put("current-tubes", Integer.toString(TubeMapper.getInstance().getTubeCount()));
+		map.put("current-connections", connections.toString());
+		map.put("current-producers", producers.toString());
+		map.put("current-workers", workers.toString());
+		map.put("current-waiting", waiting.toString());
+		map.put("total-connections", totalConnections.toString());
+		map.put("pid", Integer.toString(Utils.getPid()));
+		map.put("uptime", Integer.toString(srv.getUptime()));
+		final Binlog binlog = Binlog.getInstance();
+		map.put("binlog-oldest-index", Integer.toString(binlog.getOldestIndex()));
+		map.put("binlog-current-index", Integer.toString(binlog.getCurrentIndex()));
+		map.put("binlog-records-migrated", Long.toString(binlog.getRecordsMigrated()));
+		map.put("binlog-records-written", Long.toString(binlog.getRecordsWritten()));
+		map.put("binlog-max-size", Long.toString(binlog.getMaxFileSize()));
+		map.put("binlog-fsyncs", Long.toString(binlog.getFsyncs()));
+		final BufferPool pool = BufferPool.getInstance();
+		map.put("buffer-pool-allocated-bytes", Long.toString(pool.getAllocatedBytes()));
+		map.put("buffer-pool-used-bytes", Long.toString(pool.getUsedBytes()));
+		map.put("buffer-pool-used-buffers", Long.toString(pool.getUsedBuffers()));
+		map.put("buffer-pool-free-bytes", Long.toString(pool.getFreeBytes()));
+		final SlabBodyStore store = SlabBodyStore.getInstance();
+		map.put("body-store-capacity", Long.toString(store.getCapacity()));
+		map.put("body-store-slab-bytes", Long.toString(store.getSlabBytes()));
+		map.put("body-store-used-bytes", Long.toString(store.getUsedBytes()));
+		map.put("hostname", getHostname());
+		return map;
+	}
+}
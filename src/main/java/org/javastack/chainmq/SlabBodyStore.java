@@ -0,0 +1,198 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.javastack.chainmq;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Off-heap store of job bodies. Bodies live in chunks of size-classed slabs (direct memory) and
+ * jobs keep only a compact handle:
+ *
+ * <pre>
+ * [class:8][slab:24][chunk:32]
+ * </pre>
+ *
+ * Chunks are reference counted: the job holds one reference and every response queued for
+ * output holds another, so a body deleted while being written is freed after the write.
+ * Disabled (capacity 0) by default; bodies that don't fit stay on heap.
+ *
+ * @author Guillermo Grandes / guillermo.grandes[at]gmail.com
+ */
+public final class SlabBodyStore {
+	public static final int SLAB_SIZE = 1024 * 1024;
+	public static final int MIN_CHUNK = 64;
+	public static final int CLASSES = 15; // 64B..1MB
+	public static final int MAX_CHUNK = (MIN_CHUNK << (CLASSES - 1));
+	private static final SlabBodyStore singleton = new SlabBodyStore();
+	private final SizeClass[] classes = new SizeClass[CLASSES];
+	private final AtomicLong slabBytes = new AtomicLong();
+	private final AtomicLong usedBytes = new AtomicLong();
+	private volatile long capacity = 0;
+
+	public static SlabBodyStore getInstance() {
+		return singleton;
+	}
+
+	public SlabBodyStore() {
+		for (int i = 0; i < CLASSES; i++) {
+			classes[i] = new SizeClass(MIN_CHUNK << i);
+		}
+	}
+
+	public boolean isEnabled() {
+		return (capacity > 0);
+	}
+
+	/**
+	 * Max bytes of direct memory for slabs (0 disable)
+	 *
+	 * @param capacity
+	 */
+	public void setCapacity(final long capacity) {
+		this.capacity = Math.max(0, capacity);
+	}
+
+	public long getCapacity() {
+		return capacity;
+	}
+
+	public long getSlabBytes() {
+		return slabBytes.get();
+	}
+
+	public long getUsedBytes() {
+		return usedBytes.get();
+	}
+
+	private static int sizeClass(final int size) {
+		int c = 0;
+		int s = MIN_CHUNK;
+		while (s < size) {
+			s <<= 1;
+			c++;
+		}
+		return c;
+	}
+
+	/**
+	 * Allocate chunk for a body (with one reference)
+	 *
+	 * @param len
+	 * @return handle or -1 if disabled, too big or full (store on heap)
+	 */
+	public long allocate(final int len) {
+		if ((capacity <= 0) || (len > MAX_CHUNK))
+			return -1;
+		final int c = sizeClass(len);
+		final long ref = classes[c].allocate(c);
+		if (ref >= 0)
+			usedBytes.addAndGet(classes[c].chunkSize);
+		return ref;
+	}
+
+	/**
+	 * View of body (position at begin of body, limit at end)
+	 *
+	 * @param ref
+	 * @param len
+	 * @return
+	 */
+	public ByteBuffer buffer(final long ref, final int len) {
+		final SizeClass sc = classes[classOf(ref)];
+		final ByteBuffer slab;
+		synchronized (sc) {
+			slab = sc.slabs.get(slabOf(ref));
+		}
+		final int offset = chunkOf(ref) * sc.chunkSize;
+		final ByteBuffer view = slab.duplicate();
+		view.limit(offset + len).position(offset);
+		return view;
+	}
+
+	public void retain(final long ref) {
+		final SizeClass sc = classes[classOf(ref)];
+		synchronized (sc) {
+			sc.refs.get(slabOf(ref))[chunkOf(ref)]++;
+		}
+	}
+
+	/**
+	 * Drop a reference, chunk is reused when there are no more
+	 *
+	 * @param ref
+	 */
+	public void release(final long ref) {
+		final SizeClass sc = classes[classOf(ref)];
+		synchronized (sc) {
+			if (--sc.refs.get(slabOf(ref))[chunkOf(ref)] > 0)
+				return;
+			sc.pushFree(ref);
+		}
+		usedBytes.addAndGet(-sc.chunkSize);
+	}
+
+	private static int classOf(final long ref) {
+		return (int) (ref >>> 56);
+	}
+
+	private static int slabOf(final long ref) {
+		return (int) ((ref >>> 32) & 0xFFFFFF);
+	}
+
+	private static int chunkOf(final long ref) {
+		return (int) ref;
+	}
+
+	private final class SizeClass {
+		final int chunkSize;
+		final int chunksPerSlab;
+		final ArrayList<ByteBuffer> slabs = new ArrayList<ByteBuffer>();
+		final ArrayList<int[]> refs = new ArrayList<int[]>();
+		long[] free = new long[16];
+		int freeCount = 0;
+
+		SizeClass(final int chunkSize) {
+			this.chunkSize = chunkSize;
+			this.chunksPerSlab = Math.max(1, SLAB_SIZE / chunkSize);
+		}
+
+		synchronized long allocate(final int c) {
+			if (freeCount == 0) {
+				final int slabSize = chunksPerSlab * chunkSize;
+				if ((slabBytes.get() + slabSize) > capacity)
+					return -1;
+				final int slab = slabs.size();
+				slabs.add(ByteBuffer.allocateDirect(slabSize));
+				refs.add(new int[chunksPerSlab]);
+				slabBytes.addAndGet(slabSize);
+				for (int i = chunksPerSlab - 1; i >= 0; i--) {
+					pushFree(((long) c << 56) | ((long) slab << 32) | i);
+				}
+			}
+			final long ref = free[--freeCount];
+			refs.get(slabOf(ref))[chunkOf(ref)] = 1;
+			return ref;
+		}
+
+		void pushFree(final long ref) {
+			if (freeCount == free.length)
+				free = Arrays.copyOf(free, freeCount << 1);
+			free[freeCount++] = ref;
+		}
+	}
+}
@@ -0,0 +1,69 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.javastack.chainmq;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counter split in cache line padded cells selected by thread, concurrent increments don't contend
+ * (like LongAdder, not available in Java 6). Reading sums all cells, the value is not a snapshot
+ * while being updated.
+ *
+ * @author Guillermo Grandes / guillermo.grandes[at]gmail.com
+ */
+public final class StripedCounter {
+	private static final int PAD = 8; // longs per cell (64 bytes cache line)
+	private static final int CELLS;
+	static {
+		final int cpus = Runtime.getRuntime().availableProcessors();
+		int n = 1;
+		while (n < (cpus << 1))
+			n <<= 1;
+		CELLS = n;
+	}
+	private final AtomicLongArray cells = new AtomicLongArray((CELLS + 1) * PAD);
+
+	private static int cell() {
+		final long id = Thread.currentThread().getId();
+		final int h = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+		// First cell is padding
+		return ((((h ^ (h >>> 16)) & (CELLS - 1)) + 1) * PAD);
+	}
+
+	public void increment() {
+		cells.getAndIncrement(cell());
+	}
+
+	public void decrement() {
+		cells.getAndDecrement(cell());
+	}
+
+	public void add(final long delta) {
+		cells.getAndAdd(cell(), delta);
+	}
+
+	public long sum() {
+		long sum = 0;
+		for (int i = 1; i <= CELLS; i++) {
+			sum += cells.get(i * PAD);
+		}
+		return sum;
+	}
+
+	@Override
+	public String toString() {
+		return Long.toString(sum());
+	}
+}
@@ -0,0 +1,82 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.javastack.chainmq;
+
+/**
+ * Job Storage split in independently locked stripes (by id), threads working on different jobs
+ * don't contend.
+ *
+ * @author Guillermo Grandes / guillermo.grandes[at]gmail.com
+ */
+public final class StripedJobStorage implements JobStorage {
+	private final LongJobMap[] stripes;
+	private final int mask;
+
+	/**
+	 * Create storage
+	 *
+	 * @param concurrency expected number of threads (rounded up to power of two)
+	 */
+	public StripedJobStorage(final int concurrency) {
+		int n = 1;
+		while (n < concurrency)
+			n <<= 1;
+		stripes = new LongJobMap[n];
+		for (int i = 0; i < n; i++) {
+			stripes[i] = new LongJobMap();
+		}
+		mask = n - 1;
+	}
+
+	// Consecutive ids (same client) go to different stripes
+	private LongJobMap stripe(final long id) {
+		return stripes[(int) id & mask];
+	}
+
+	@Override
+	public void putJob(final long id, final Job job) {
+		final LongJobMap map = stripe(id);
+		synchronized (map) {
+			map.putJob(id, job);
+		}
+	}
+
+	@Override
+	public Job getJob(final long id) {
+		final LongJobMap map = stripe(id);
+		synchronized (map) {
+			return map.getJob(id);
+		}
+	}
+
+	@Override
+	public void removeJob(final long id) {
+		final LongJobMap map = stripe(id);
+		synchronized (map) {
+			map.removeJob(id);
+		}
+	}
+
+	@Override
+	public int totalJobs() {
+		int total = 0;
+		for (final LongJobMap map : stripes) {
+			synchronized (map) {
+				total += map.totalJobs();
+			}
+		}
+		return total;
+	}
+}
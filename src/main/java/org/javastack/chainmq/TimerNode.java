@@ -0,0 +1,37 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.javastack.chainmq;
+
+/**
+ * Intrusive entry of a {@link TimingWheel} (links live in the timed object, no allocation per
+ * schedule). A node can be scheduled only in one wheel at a time; while not scheduled the links
+ * are free for the owner (see {@link ReadyQueue}).
+ *
+ * @author Guillermo Grandes / guillermo.grandes[at]gmail.com
+ */
+public abstract class TimerNode {
+	transient long deadline; // millis
+	transient int bucket = -1; // -1 if not scheduled
+	transient TimerNode prev = null;
+	transient TimerNode next = null;
+
+	/**
+	 * Called (outside the wheel lock) when deadline is reached. The state of the owner can change
+	 * between expiration and this call, check it again.
+	 *
+	 * @param now current time in millis
+	 */
+	protected abstract void expire(final long now);
+}
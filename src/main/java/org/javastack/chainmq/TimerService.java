@@ -0,0 +1,110 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.javastack.chainmq;
+
+import java.util.ArrayList;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Timer thread driving a {@link TimingWheel}: sleeps exactly until next deadline and fires expired
+ * timers outside the lock.
+ *
+ * @author Guillermo Grandes / guillermo.grandes[at]gmail.com
+ */
+public class TimerService implements Runnable {
+	private static final Logger log = Logger.getLogger(TimerService.class);
+	private final TimingWheel wheel = new TimingWheel(System.currentTimeMillis());
+	private final ArrayList<TimerNode> expired = new ArrayList<TimerNode>();
+	private final String name;
+	private long sleepUntil = Long.MAX_VALUE;
+
+	public TimerService(final String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Schedule or reschedule timer
+	 *
+	 * @param node
+	 * @param deadline millis
+	 */
+	public synchronized void schedule(final TimerNode node, final long deadline) {
+		wheel.add(node, deadline);
+		if (deadline < sleepUntil)
+			notify();
+	}
+
+	/**
+	 * Cancel timer
+	 *
+	 * @param node
+	 * @return true if was scheduled
+	 */
+	public synchronized boolean cancel(final TimerNode node) {
+		return wheel.remove(node);
+	}
+
+	public synchronized int size() {
+		return wheel.size();
+	}
+
+	private synchronized void awaitExpired() throws InterruptedException {
+		while (true) {
+			final long now = System.currentTimeMillis();
+			wheel.advance(now, expired);
+			if (!expired.isEmpty())
+				break;
+			final long next = wheel.nextDeadline();
+			sleepUntil = next;
+			if (next == Long.MAX_VALUE) {
+				wait();
+			} else {
+				wait(Math.max(1, next - now));
+			}
+			sleepUntil = Long.MAX_VALUE;
+		}
+	}
+
+	@Override
+	public void run() {
+		log.info("[" + Thread.currentThread().getName() + "] Thread start");
+		try {
+			while (true) {
+				awaitExpired();
+				final long now = System.currentTimeMillis();
+				for (int i = 0; i < expired.size(); i++) {
+					try {
+						expired.get(i).expire(now);
+					} catch (Exception e) {
+						log.error("Exception: " + e.toString(), e);
+					}
+				}
+				expired.clear();
+			}
+		} catch (InterruptedException e) {
+			log.error("InterruptedException: " + e.toString(), e);
+		} finally {
+			log.info("[" + Thread.currentThread().getName() + "] Thread end");
+		}
+	}
+
+	public void start() {
+		final Thread timerThread = new Thread(this);
+		timerThread.setName(name);
+		timerThread.setDaemon(true);
+		timerThread.start();
+	}
+}
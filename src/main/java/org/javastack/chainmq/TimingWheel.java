@@ -0,0 +1,207 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.javastack.chainmq;
+
+import java.util.List;
+
+/**
+ * Hierarchical hashed timing wheel with 1ms resolution.
+ *
+ * Level N has 64 slots of 64^N millis each. A timer is placed in the lowest level whose window
+ * contains its deadline and cascades down as time advances, so schedule/cancel are O(1) and every
+ * timer moves at most once per level. A bitmap per level finds the next deadline without scanning
+ * slots.
+ *
+ * Passive and not thread-safe: the owner drives it with {@link #advance(long, List)} and guards it.
+ *
+ * @author Guillermo Grandes / guillermo.grandes[at]gmail.com
+ */
+public final class TimingWheel {
+	private static final int SLOT_BITS = 6;
+	private static final int SLOTS = (1 << SLOT_BITS);
+	private static final int LEVELS = 8; // 2^48 millis
+	private static final long MAX_SPAN = ((1L << (SLOT_BITS * LEVELS)) - 1);
+	private static final int DUE = (LEVELS * SLOTS); // bucket of already expired timers
+	private final TimerNode[] buckets = new TimerNode[DUE + 1];
+	private final long[] occupied = new long[LEVELS];
+	private final long origin;
+	private long elapsed = 0; // millis since origin
+	private int size = 0;
+
+	public TimingWheel(final long now) {
+		this.origin = now;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return (size == 0);
+	}
+
+	/**
+	 * Schedule timer (reschedule if already scheduled)
+	 *
+	 * @param node
+	 * @param deadline in millis
+	 */
+	public void add(final TimerNode node, final long deadline) {
+		if (node.bucket >= 0) {
+			unlink(node);
+		} else {
+			size++;
+		}
+		node.deadline = deadline;
+		insert(node);
+	}
+
+	/**
+	 * Cancel timer
+	 *
+	 * @param node
+	 * @return true if was scheduled
+	 */
+	public boolean remove(final TimerNode node) {
+		if (node.bucket < 0)
+			return false;
+		unlink(node);
+		size--;
+		return true;
+	}
+
+	/**
+	 * Move time forward collecting expired timers
+	 *
+	 * @param now in millis
+	 * @param expired output
+	 */
+	public void advance(final long now, final List<TimerNode> expired) {
+		final long t = now - origin;
+		drain(DUE, expired);
+		while (true) {
+			final int bucket = nextBucket();
+			if (bucket < 0)
+				break;
+			final long slotTime = bucketTime(bucket);
+			if (slotTime > t)
+				break;
+			elapsed = slotTime;
+			TimerNode node = buckets[bucket];
+			buckets[bucket] = null;
+			occupied[bucket >>> SLOT_BITS] &= ~(1L << (bucket & (SLOTS - 1)));
+			while (node != null) {
+				final TimerNode next = node.next;
+				node.prev = node.next = null;
+				node.bucket = -1;
+				if ((node.deadline - origin) <= elapsed) {
+					size--;
+					expired.add(node);
+				} else {
+					insert(node); // cascade
+				}
+				node = next;
+			}
+		}
+		if (t > elapsed)
+			elapsed = t;
+	}
+
+	/**
+	 * Time of next expiration (may be earlier than real deadline for far timers, that only cascade)
+	 *
+	 * @return millis or Long.MAX_VALUE if empty
+	 */
+	public long nextDeadline() {
+		if (buckets[DUE] != null)
+			return origin + elapsed;
+		final int bucket = nextBucket();
+		if (bucket < 0)
+			return Long.MAX_VALUE;
+		return origin + bucketTime(bucket);
+	}
+
+	private int nextBucket() {
+		for (int level = 0; level < LEVELS; level++) {
+			final long bits = occupied[level];
+			if (bits == 0)
+				continue;
+			final int pos = (int) ((elapsed >>> (level * SLOT_BITS)) & (SLOTS - 1));
+			final int slot = ((Long.numberOfTrailingZeros(Long.rotateRight(bits, pos)) + pos) & (SLOTS - 1));
+			return ((level << SLOT_BITS) | slot);
+		}
+		return -1;
+	}
+
+	private long bucketTime(final int bucket) {
+		final int level = (bucket >>> SLOT_BITS);
+		final int shift = (level * SLOT_BITS);
+		final long levelRange = (1L << (shift + SLOT_BITS));
+		final long levelStart = (elapsed & ~(levelRange - 1));
+		long time = levelStart + ((long) (bucket & (SLOTS - 1)) << shift);
+		if ((time < elapsed) && (level > 0))
+			time += levelRange;
+		return time;
+	}
+
+	private void insert(final TimerNode node) {
+		final long t = Math.min(node.deadline - origin, elapsed + MAX_SPAN);
+		final int bucket;
+		if (t <= elapsed) {
+			bucket = DUE;
+		} else {
+			final long masked = ((elapsed ^ t) | (SLOTS - 1));
+			final int level = ((63 - Long.numberOfLeadingZeros(masked)) / SLOT_BITS);
+			final int slot = (int) ((t >>> (level * SLOT_BITS)) & (SLOTS - 1));
+			bucket = ((level << SLOT_BITS) | slot);
+			occupied[level] |= (1L << slot);
+		}
+		final TimerNode head = buckets[bucket];
+		node.prev = null;
+		node.next = head;
+		if (head != null)
+			head.prev = node;
+		buckets[bucket] = node;
+		node.bucket = bucket;
+	}
+
+	private void unlink(final TimerNode node) {
+		final int bucket = node.bucket;
+		if (node.prev != null) {
+			node.prev.next = node.next;
+		} else {
+			buckets[bucket] = node.next;
+		}
+		if (node.next != null)
+			node.next.prev = node.prev;
+		node.prev = node.next = null;
+		node.bucket = -1;
+		if ((bucket != DUE) && (buckets[bucket] == null))
+			occupied[bucket >>> SLOT_BITS] &= ~(1L << (bucket & (SLOTS - 1)));
+	}
+
+	private void drain(final int bucket, final List<TimerNode> expired) {
+		TimerNode node = buckets[bucket];
+		buckets[bucket] = null;
+		while (node != null) {
+			final TimerNode next = node.next;
+			node.prev = node.next = null;
+			node.bucket = -1;
+			size--;
+			expired.add(node);
+			node = next;
+		}
+	}
+}
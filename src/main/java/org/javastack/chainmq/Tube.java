@@ -14,13 +14,15 @@
  */
 package org.javastack.chainmq;
 
-import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.Map;
-import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.Logger;
 
@@ -31,20 +33,39 @@ import org.apache.log4j.Logger;
  */
 public class Tube {
 	private static final Logger log = Logger.getLogger(Tube.class);
-	final SequenceNumber seq;
+	private static final ServerStats stats = ServerStats.getInstance();
+	final JobIdAllocator ids;
 	final String name;
 	final JobStorage jobsByID;
-	final TreeSet<Job> jobsByPrio = new TreeSet<Job>(Job.priorityComparator);
-	final TreeSet<Job> jobsBySched = new TreeSet<Job>(Job.readyTimeComparator);
+	final TimerService timer;
+	final ReadyQueue jobsByPrio = new ReadyQueue();
+	final JobHeap jobsBySched = new JobHeap(Job.readyTimeComparator);
 	final LinkedHashSet<Job> jobsBuried = new LinkedHashSet<Job>();
 	final HashSet<Job> jobsReserved = new HashSet<Job>();
-	final ArrayDeque<AsyncUpdateCallBack> notifyQueue = new ArrayDeque<AsyncUpdateCallBack>();
+	final WaitQueue waiters = new WaitQueue();
 	long delayed = 0;
-	long delayedUntil = 0;
+	volatile long delayedUntil = 0;
+	volatile Job readyHead = null; // first of jobsByPrio, read without lock by reserve
+	// Stats (counters, stats-tube never scans the tube)
+	long totalJobs = 0;
+	long cmdPause = 0;
+	final AtomicLong cmdDelete = new AtomicLong();
+	final AtomicInteger using = new AtomicInteger();
+	final AtomicInteger watching = new AtomicInteger();
+	final TimerNode resumeTimer = new TimerNode() {
+		@Override
+		protected void expire(final long now) {
+			synchronized (Tube.this) {
+				resumeIfCan();
+			}
+		}
+	};
 
-	public Tube(final SequenceNumber seq, final JobStorage jobsGlobalByID, final String name) {
-		this.seq = seq;
+	public Tube(final JobIdAllocator ids, final JobStorage jobsGlobalByID, final TimerService timer,
+			final String name) {
+		this.ids = ids;
 		this.jobsByID = jobsGlobalByID;
+		this.timer = timer;
 		this.name = name;
 	}
 
@@ -53,8 +74,13 @@ public class Tube {
 	}
 
 	public Job newJob(final long prio, final long delay, final long ttr, final byte[] data) {
-		final long id = seq.nextLong();
-		return new Job(this, id, prio, delay, ttr, data);
+		return newJob(prio, delay, ttr, data, -1, data.length);
+	}
+
+	public Job newJob(final long prio, final long delay, final long ttr, final byte[] data, final long dataRef,
+			final int len) {
+		final long id = ids.nextId();
+		return new Job(this, id, prio, delay, ttr, data, dataRef, len);
 	}
 
 	public synchronized Job peek(final long id) {
@@ -64,19 +90,32 @@ public class Tube {
 	public synchronized Job get() {
 		if (isPaused())
 			return null;
-		return jobsByPrio.pollFirst();
+		final Job job = jobsByPrio.poll();
+		if (job != null) {
+			readyStats(job, -1);
+			readyHead = jobsByPrio.peek();
+		}
+		return job;
 	}
 
-	public synchronized Job peek() {
-		if (jobsByPrio.isEmpty())
+	/**
+	 * Best ready job (snapshot without lock, can be stale)
+	 * 
+	 * @return job or null if none or paused
+	 */
+	public Job peekReadyHead() {
+		final long until = delayedUntil;
+		if ((until > 0) && (until > System.currentTimeMillis()))
 			return null;
-		return jobsByPrio.first();
+		return readyHead;
+	}
+
+	public synchronized Job peek() {
+		return jobsByPrio.peek();
 	}
 
 	public synchronized Job peekDelayed() {
-		if (jobsBySched.isEmpty())
-			return null;
-		return jobsBySched.first();
+		return jobsBySched.peek();
 	}
 
 	public synchronized Job peekBuried() {
@@ -89,61 +128,132 @@ public class Tube {
 		return null;
 	}
 
-	public synchronized long kick(final long count) {
-		long kicked = 0;
-		if (!jobsBuried.isEmpty()) {
-			// If buried jobs, kicks only on Burieds
-			final Iterator<Job> i = jobsBuried.iterator();
-			while (i.hasNext()) {
-				final Job job = i.next();
-				i.remove();
-				job.setReady();
-				if (++kicked >= count)
-					return kicked;
-			}
-		} else if (!jobsBySched.isEmpty()) {
-			// If no buried, kicks on Delayed
-			final Iterator<Job> i = jobsBySched.iterator();
-			while (i.hasNext()) {
-				final Job job = i.next();
-				i.remove();
-				job.setReady();
-				if (++kicked >= count)
-					return kicked;
+	public long kick(final long count) {
+		final ArrayList<Job> jobs = new ArrayList<Job>();
+		synchronized (this) {
+			if (!jobsBuried.isEmpty()) {
+				// If buried jobs, kicks only on Burieds
+				final Iterator<Job> i = jobsBuried.iterator();
+				while (i.hasNext() && (jobs.size() < count)) {
+					jobs.add(i.next());
+				}
+			} else if (!jobsBySched.isEmpty()) {
+				// If no buried, kicks on Delayed (first to be ready)
+				Job job = null;
+				while ((jobs.size() < count) && ((job = jobsBySched.poll()) != null)) {
+					jobs.add(job);
+				}
+				for (final Job j : jobs) {
+					jobsBySched.add(j);
+				}
 			}
 		}
+		// Out of tube lock: job transitions lock job, then tube
+		long kicked = 0;
+		for (final Job job : jobs) {
+			if (job.doKick())
+				kicked++;
+		}
 		return kicked;
 	}
 
-	public synchronized void pushCallback(final AsyncUpdateCallBack notify) {
-		notifyQueue.addLast(notify);
+	/**
+	 * Wait for a ready job (caller must hold the tube lock and check there is none)
+	 * 
+	 * @param waiter
+	 */
+	public synchronized void addWaiter(final AsyncUpdateCallBack waiter) {
+		waiter.waitOn(waiters);
+	}
+
+	public synchronized boolean isReservable() {
+		return (!jobsByPrio.isEmpty() && !isPaused());
 	}
 
+	/**
+	 * Blocked reserve, waiting in every watched tube until served, timed out or cancelled
+	 */
 	public static abstract class AsyncUpdateCallBack extends AsyncTask {
+		private WaitQueue.Node[] nodes = null; // one per tube
+		private int nodeCount = 0;
+		private boolean cancelled = false;
+
 		public AsyncUpdateCallBack(final long sequence, final ClientHandler clientHandler) {
 			super(sequence, clientHandler);
 		}
 
-		public abstract boolean newData(final Tube tube);
-	}
+		/**
+		 * Take a ready job of tube for this waiter (caller must hold the tube lock). Leaving the
+		 * ready queue is the claim: the job stays READY until {@link #reserved(Job)} marks it
+		 * reserved (out of the tube lock), but no other client can delete it meanwhile.
+		 * 
+		 * @param tube
+		 * @return job or null if no job or the task is already done
+		 */
+		public final Job claim(final Tube tube) {
+			if (!tube.isReservable() || !taskMarkDone())
+				return null;
+			cancelWait();
+			return tube.get();
+		}
 
-	synchronized boolean processSchedQueue() {
-		int maxExpunge = 100;
-		boolean expunged = false;
-		while (!jobsBySched.isEmpty() && (--maxExpunge > 0)) {
-			final Job job = jobsBySched.first();
-			final long now = System.currentTimeMillis();
-			if (job.readyTime <= now) {
-				log.info("Tube: <" + getName() + "> Scheduled job ready:" + job);
-				job.setReady();
-				expunged = true;
-				continue;
+		/**
+		 * New ready job in tube (caller holds the tube lock). The job is claimed here and replied in
+		 * the event loop of the client, job and client locks are taken out of the tube lock.
+		 * 
+		 * @param tube
+		 * @return true if a job was reserved
+		 */
+		public final boolean newData(final Tube tube) {
+			final Job job = claim(tube);
+			if (job == null)
+				return false;
+			clientHandler.loop.execute(new Runnable() {
+				@Override
+				public void run() {
+					reserved(job);
+				}
+			});
+			return true;
+		}
+
+		/**
+		 * Reply job to the client
+		 * 
+		 * @param job
+		 */
+		public abstract void reserved(final Job job);
+
+		synchronized void waitOn(final WaitQueue queue) {
+			if (cancelled)
+				return;
+			if (nodes == null) {
+				nodes = new WaitQueue.Node[4];
+				stats.waiting.increment();
+			} else if (nodeCount == nodes.length) {
+				nodes = Arrays.copyOf(nodes, nodeCount << 1);
+			}
+			final WaitQueue.Node node = new WaitQueue.Node(queue, this);
+			nodes[nodeCount++] = node;
+			queue.add(node);
+		}
+
+		/**
+		 * Stop waiting in all tubes
+		 */
+		public synchronized void cancelWait() {
+			if (cancelled)
+				return;
+			cancelled = true;
+			if (nodes == null)
+				return;
+			for (int i = 0; i < nodeCount; i++) {
+				nodes[i].queue.remove(nodes[i]);
 			}
-			break;
+			nodes = null;
+			nodeCount = 0;
+			stats.waiting.decrement();
 		}
-		// Notify after tube pause
-		resumeIfCan();
-		return !expunged;
 	}
 
 	/**
@@ -155,6 +265,8 @@ public class Tube {
 	public synchronized void pause(final long delay) {
 		delayed = Math.max(1000, delay);
 		delayedUntil = System.currentTimeMillis() + delayed;
+		timer.schedule(resumeTimer, delayedUntil);
+		cmdPause++;
 		log.info("Tube: <" + getName() + "> Paused " + delayed + "ms until: " + delayedUntil);
 	}
 
@@ -186,18 +298,16 @@ public class Tube {
 	private final void processNotifyQueue() {
 		if (isPaused())
 			return;
-		while (true) {
-			final AsyncUpdateCallBack notify = notifyQueue.pollFirst();
-			if (notify != null) {
-				if (!notify.newData(this))
-					continue;
-			}
-			break;
+		WaitQueue.Node node = null;
+		while (!jobsByPrio.isEmpty() && ((node = waiters.poll()) != null)) {
+			node.waiter.newData(this);
 		}
 	}
 
 	public synchronized void addJob(final Job job) {
 		jobsByID.putJob(job.id, job);
+		totalJobs++;
+		stats.totalJobs.increment();
 	}
 
 	public synchronized void removeJob(final Job job) {
@@ -206,71 +316,114 @@ public class Tube {
 
 	public synchronized void addReady(final Job job) {
 		jobsByPrio.add(job);
+		readyStats(job, 1);
+		final Job head = readyHead;
+		if ((head == null) || (Job.priorityComparator.compare(job, head) < 0))
+			readyHead = job;
 		processNotifyQueue();
 	}
 
-	public synchronized void removeReady(final Job job) {
-		jobsByPrio.remove(job);
+	/**
+	 * Remove ready job
+	 * 
+	 * @param job
+	 * @return false if job is not in ready queue (claimed by a reserve in progress)
+	 */
+	public synchronized boolean removeReady(final Job job) {
+		if (!jobsByPrio.remove(job))
+			return false;
+		readyStats(job, -1);
+		readyHead = jobsByPrio.peek();
+		return true;
+	}
+
+	private static void readyStats(final Job job, final int delta) {
+		stats.jobsReady.add(delta);
+		if (job.prio < Constants.URGENT_PRIO)
+			stats.jobsUrgent.add(delta);
 	}
 
 	public synchronized void addReserve(final Job job) {
-		jobsReserved.add(job);
+		if (jobsReserved.add(job))
+			stats.jobsReserved.increment();
 	}
 
 	public synchronized void removeReserve(final Job job) {
-		jobsReserved.remove(job);
+		if (jobsReserved.remove(job))
+			stats.jobsReserved.decrement();
 	}
 
 	public synchronized void addBuried(final Job job) {
-		jobsBuried.add(job);
+		if (jobsBuried.add(job))
+			stats.jobsBuried.increment();
 	}
 
 	public synchronized void removeBuried(final Job job) {
-		jobsBuried.remove(job);
+		if (jobsBuried.remove(job))
+			stats.jobsBuried.decrement();
 	}
 
 	public synchronized void addDelayed(final Job job) {
 		jobsBySched.add(job);
+		stats.jobsDelayed.increment();
+		timer.schedule(job, job.readyTime);
 	}
 
 	public synchronized void removeDelayed(final Job job) {
-		jobsBySched.remove(job);
+		if (jobsBySched.remove(job))
+			stats.jobsDelayed.decrement();
+		timer.cancel(job);
+	}
+
+	public void statsDelete() {
+		cmdDelete.incrementAndGet();
+	}
+
+	/**
+	 * Client using (put) tube
+	 * 
+	 * @param use true if start using, false if stop
+	 */
+	public void statsUsing(final boolean use) {
+		if (use) {
+			using.incrementAndGet();
+		} else {
+			using.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Client watching (reserve) tube
+	 * 
+	 * @param watch true if start watching, false if stop
+	 */
+	public void statsWatching(final boolean watch) {
+		if (watch) {
+			watching.incrementAndGet();
+		} else {
+			watching.decrementAndGet();
+		}
 	}
 
 	public synchronized Map<String, Object> getStats() {
 		final Map<String, Object> map = new LinkedHashMap<String, Object>();
 		//
 		map.put("name", name);
-		map.put("current-jobs-urgent", Integer.toString(countJobsUrgent()));
+		map.put("current-jobs-urgent", Integer.toString(jobsByPrio.urgent()));
 		map.put("current-jobs-ready", Integer.toString(jobsByPrio.size()));
 		map.put("current-jobs-reserved", Integer.toString(jobsReserved.size()));
 		map.put("current-jobs-delayed", Integer.toString(jobsBySched.size()));
 		map.put("current-jobs-buried", Integer.toString(jobsBuried.size()));
-		map.put("total-jobs", Integer.toString(jobsByID.totalJobs()));
-		// TODO
-		// map.put("current-using", null);
-		// map.put("current-waiting", null);
-		// map.put("current-watching", null);
+		map.put("total-jobs", Long.toString(totalJobs));
+		map.put("current-using", Integer.toString(using.get()));
+		map.put("current-waiting", Integer.toString(waiters.size()));
+		map.put("current-watching", Integer.toString(watching.get()));
 		map.put("pause", Long.toString(delayed / 1000));
-		// map.put("cmd-delete", null);
-		// map.put("cmd-pause-tube", null);
+		map.put("cmd-delete", Long.toString(cmdDelete.get()));
+		map.put("cmd-pause-tube", Long.toString(cmdPause));
 		map.put("pause-time-left",
 				Long.toString(Math.max(0, (delayedUntil - System.currentTimeMillis())) / 1000));
 		return map;
 	}
 
-	private final int countJobsUrgent() {
-		final Iterator<Job> i = jobsByPrio.iterator();
-		int count = 0;
-		while (i.hasNext()) {
-			final Job j = i.next();
-			if (j.prio < 1024) {
-				count++;
-			} else {
-				break;
-			}
-		}
-		return count;
-	}
-
 }
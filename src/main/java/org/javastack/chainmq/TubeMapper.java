@@ -14,10 +14,10 @@
  */
 package org.javastack.chainmq;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.log4j.Logger;
 
@@ -26,12 +26,14 @@ import org.apache.log4j.Logger;
  * 
  * @author Guillermo Grandes / guillermo.grandes[at]gmail.com
  */
-public class TubeMapper implements JobStorage, Runnable {
+public class TubeMapper implements JobStorage {
 	private static final Logger log = Logger.getLogger(Tube.class);
 	private static final TubeMapper singleton = new TubeMapper();
-	private final LinkedHashMap<String, Tube> tubes = new LinkedHashMap<String, Tube>();
-	private final SequenceNumber seq = new SequenceNumber();
-	private final HashMap<Long, Job> jobsGlobalByID = new HashMap<Long, Job>();
+	private final ConcurrentHashMap<String, Tube> tubes = new ConcurrentHashMap<String, Tube>();
+	private final JobIdAllocator ids = new JobIdAllocator(new SequenceNumber());
+	private final StripedJobStorage jobsGlobalByID = new StripedJobStorage(Runtime.getRuntime()
+			.availableProcessors() * 4);
+	private final TimerService timer = new TimerService("DelayedJobsTimer");
 
 	static {
 		getInstance().getTubeOrCreate(Constants.DEFAULT_TUBE);
@@ -42,77 +44,81 @@ public class TubeMapper implements JobStorage, Runnable {
 	}
 
 	TubeMapper() {
-		start();
+		timer.start();
 	}
 
-	public synchronized Tube getTubeOrCreate(final String name) {
+	public Tube getTubeOrCreate(final String name) {
 		Tube tube = tubes.get(name);
 		if (tube == null) {
-			tube = new Tube(seq, this, name);
-			tubes.put(name, tube);
+			final Tube newTube = new Tube(ids, this, timer, name);
+			tube = tubes.putIfAbsent(name, newTube);
+			if (tube == null)
+				tube = newTube;
 		}
 		return tube;
 	}
 
-	public synchronized Tube getTubeIfExist(final String name) {
-		return tubes.get(name);
+	/**
+	 * Restore job from binlog (on startup)
+	 */
+	public Job recoverJob(final String tubeName, final long id, final long prio, final long created,
+			final long readyTime, final long ttr, final ByteBuffer body, final boolean buried) {
+		final Tube tube = getTubeOrCreate(tubeName);
+		final SlabBodyStore store = SlabBodyStore.getInstance();
+		final int len = body.remaining();
+		final long ref = store.allocate(len);
+		final Job job;
+		if (ref >= 0) {
+			store.buffer(ref, len).put(body);
+			job = new Job(tube, id, prio, created, readyTime, ttr, null, ref, len);
+		} else {
+			final byte[] data = new byte[len];
+			body.get(data);
+			job = new Job(tube, id, prio, created, readyTime, ttr, data, -1, len);
+		}
+		job.doRecover(buried);
+		return job;
 	}
 
-	public synchronized List<String> getTubeList() {
-		return new ArrayList<String>(tubes.keySet());
+	/**
+	 * New job ids will be greater than given one
+	 * 
+	 * @param id
+	 */
+	public void advanceIds(final long id) {
+		ids.advanceTo(id);
 	}
 
-	@Override
-	public synchronized void putJob(final long id, final Job job) {
-		jobsGlobalByID.put(Long.valueOf(id), job);
+	public Tube getTubeIfExist(final String name) {
+		return tubes.get(name);
 	}
 
-	@Override
-	public synchronized Job getJob(final long id) {
-		return jobsGlobalByID.get(Long.valueOf(id));
+	public int getTubeCount() {
+		return tubes.size();
+	}
+
+	public List<String> getTubeList() {
+		return new ArrayList<String>(tubes.keySet());
 	}
 
 	@Override
-	public synchronized void removeJob(final long id) {
-		jobsGlobalByID.remove(Long.valueOf(id));
+	public void putJob(final long id, final Job job) {
+		jobsGlobalByID.putJob(id, job);
 	}
 
 	@Override
-	public synchronized int totalJobs() {
-		return jobsGlobalByID.size();
+	public Job getJob(final long id) {
+		return jobsGlobalByID.getJob(id);
 	}
 
 	@Override
-	public void run() {
-		log.info("[" + Thread.currentThread().getName() + "] Thread start");
-		try {
-			while (true) {
-				boolean doWait = true;
-				synchronized (this) {
-					for (final Tube tube : tubes.values()) {
-						if (!tube.processSchedQueue()) {
-							doWait = false;
-							continue;
-						}
-					}
-				}
-				if (doWait)
-					Thread.sleep(100);
-			}
-		} catch (InterruptedException e) {
-			log.error("InterruptedException: " + e.toString(), e);
-		} catch (Exception e) {
-			log.error("Exception: " + e.toString(), e);
-		} finally {
-			log.info("[" + Thread.currentThread().getName() + "] Thread end");
-		}
+	public void removeJob(final long id) {
+		jobsGlobalByID.removeJob(id);
 	}
 
-	private synchronized final void start() {
-		final Thread cleanerThread = new Thread(this);
-		cleanerThread.setName("TubeMapper");
-		cleanerThread.setDaemon(true);
-		cleanerThread.start();
+	@Override
+	public int totalJobs() {
+		return jobsGlobalByID.totalJobs();
 	}
 
 }
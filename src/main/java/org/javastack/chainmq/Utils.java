@@ -16,9 +16,6 @@ package org.javastack.chainmq;
 
 import java.io.File;
 import java.lang.management.ManagementFactory;
-import java.util.Arrays;
-import java.util.Collections;
-import java.util.List;
 
 import org.apache.log4j.Logger;
 
@@ -65,22 +62,24 @@ public class Utils {
 
 	public static long parseLong(final String n, final long maxValue) {
 		try {
-			final long l = Long.valueOf(n);
+			final long l = Long.parseLong(n);
 			if ((l >= 0) && (l <= maxValue))
 				return l;
-		} catch (Exception e) {
-			log.error("Exception: " + e.toString(), e);
+		} catch (NumberFormatException e) {
+			if (log.isDebugEnabled())
+				log.debug("Invalid number: " + n);
 		}
 		return -1;
 	}
 
 	public static int parseInteger(final String n, final int maxValue) {
 		try {
-			final int i = Integer.valueOf(n);
+			final int i = Integer.parseInt(n);
 			if ((i >= 0) && (i <= maxValue))
 				return i;
-		} catch (Exception e) {
-			log.error("Exception: " + e.toString(), e);
+		} catch (NumberFormatException e) {
+			if (log.isDebugEnabled())
+				log.debug("Invalid number: " + n);
 		}
 		return -1;
 	}
@@ -89,32 +88,6 @@ public class Utils {
 		return parseInteger(n, Integer.MAX_VALUE);
 	}
 
-	public static List<String> parseTokens(final String in) {
-		try {
-			final int[] seps = new int[Constants.REQUEST_MAX_TOKENS + 2];
-			final int len = in.length();
-			int j = 1;
-			seps[0] = -1;
-			for (int i = 0; i < len; i++) {
-				final char c = in.charAt(i);
-				if (c == ' ') {
-					if (j < seps.length)
-						seps[j++] = i;
-				}
-			}
-			if (j < seps.length)
-				seps[j++] = len;
-			final String[] toks = new String[j - 1];
-			for (int i = 1; i < j; i++) {
-				toks[i - 1] = in.substring(seps[i - 1] + 1, seps[i]);
-			}
-			return Arrays.asList(toks);
-		} catch (Exception e) {
-			log.error("Exception " + e.toString(), e);
-		}
-		return Collections.emptyList();
-	}
-	
 	public static void main(String[] args) {
 		System.out.println(getPid());
 		System.out.println(getHostname());
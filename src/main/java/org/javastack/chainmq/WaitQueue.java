@@ -0,0 +1,98 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.javastack.chainmq;
+
+import org.javastack.chainmq.Tube.AsyncUpdateCallBack;
+
+/**
+ * Clients waiting for jobs of a tube (blocking reserves), in arrival order. Each waiter has one
+ * node per watched tube, when it is served (or times out) all its nodes are unlinked in O(1), no
+ * stale entries are left behind.
+ * 
+ * Locking: the queue lock is a leaf, it is taken with the tube and/or the waiter locks held (in
+ * this order: tube, waiter, queue) and nothing is locked inside.
+ * 
+ * @author Guillermo Grandes / guillermo.grandes[at]gmail.com
+ */
+public final class WaitQueue {
+	private Node head = null;
+	private Node tail = null;
+	private int size = 0;
+
+	public synchronized int size() {
+		return size;
+	}
+
+	public synchronized void add(final Node node) {
+		node.prev = tail;
+		node.next = null;
+		if (tail == null) {
+			head = node;
+		} else {
+			tail.next = node;
+		}
+		tail = node;
+		node.linked = true;
+		size++;
+	}
+
+	/**
+	 * Remove first waiter
+	 * 
+	 * @return node or null if empty
+	 */
+	public synchronized Node poll() {
+		final Node node = head;
+		if (node != null)
+			unlink(node);
+		return node;
+	}
+
+	public synchronized void remove(final Node node) {
+		if (node.linked)
+			unlink(node);
+	}
+
+	private void unlink(final Node node) {
+		final Node p = node.prev;
+		final Node n = node.next;
+		if (p == null) {
+			head = n;
+		} else {
+			p.next = n;
+		}
+		if (n == null) {
+			tail = p;
+		} else {
+			n.prev = p;
+		}
+		node.prev = node.next = null;
+		node.linked = false;
+		size--;
+	}
+
+	public static final class Node {
+		final WaitQueue queue;
+		final AsyncUpdateCallBack waiter;
+		Node prev = null;
+		Node next = null;
+		boolean linked = false;
+
+		Node(final WaitQueue queue, final AsyncUpdateCallBack waiter) {
+			this.queue = queue;
+			this.waiter = waiter;
+		}
+	}
+}
@@ -0,0 +1,85 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.javastack.chainmq.sandbox;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+
+import org.javastack.chainmq.CommandHandler;
+import org.javastack.chainmq.CommandTable;
+import org.javastack.chainmq.RequestTokens;
+
+/**
+ * Verb resolution: String + HashMap vs byte-level CommandTable
+ *
+ * @author Guillermo Grandes / guillermo.grandes[at]gmail.com
+ */
+public class DispatchBenchmark {
+	private static final Charset charsetLatin1 = Charset.forName("ISO-8859-1");
+	private static final String[] VERBS = {
+			"put", "use", "reserve", "reserve-with-timeout", "delete", "release", "bury", "touch", "watch",
+			"ignore", "peek", "peek-ready", "peek-delayed", "peek-buried", "kick", "kick-job", "stats-job",
+			"stats-tube", "stats", "list-tubes", "list-tube-used", "list-tubes-watched", "quit", "pause-tube"
+	};
+	private static final String[] REQUESTS = {
+			"put 0 0 60 32", "reserve", "delete 12345", "reserve-with-timeout 5", "touch 12345", "stats"
+	};
+
+	public static void main(final String[] args) throws Throwable {
+		final long loops = (args.length > 0 ? Long.parseLong(args[0]) : 50000000L);
+		final HashMap<String, CommandHandler> map = new HashMap<String, CommandHandler>();
+		final CommandTable table = new CommandTable();
+		for (final String verb : VERBS) {
+			final CommandHandler handler = CommandHandler.getHandler(verb);
+			map.put(verb, handler);
+			table.register(verb, handler);
+		}
+		final ByteBuffer[] bufs = new ByteBuffer[REQUESTS.length];
+		final RequestTokens[] tokens = new RequestTokens[REQUESTS.length];
+		for (int i = 0; i < REQUESTS.length; i++) {
+			bufs[i] = ByteBuffer.wrap(REQUESTS[i].getBytes(charsetLatin1));
+			tokens[i] = new RequestTokens();
+			tokens[i].parse(bufs[i], 0, bufs[i].limit());
+		}
+		for (int round = 0; round < 3; round++) {
+			// HashMap<String, CommandHandler>
+			long begin = System.nanoTime();
+			int hits = 0;
+			int r = 0;
+			for (long i = 0; i < loops; i++) {
+				if (++r >= REQUESTS.length)
+					r = 0;
+				final String verb = new String(bufs[r].array(), 0, tokens[r].length(0), charsetLatin1);
+				if (map.get(verb) != null)
+					hits++;
+			}
+			long diff = System.nanoTime() - begin;
+			System.out.println("HashMap<String>   " + (diff / loops) + "ns/op hits=" + hits);
+			// CommandTable
+			begin = System.nanoTime();
+			hits = 0;
+			r = 0;
+			for (long i = 0; i < loops; i++) {
+				if (++r >= REQUESTS.length)
+					r = 0;
+				if (table.get(tokens[r], 0) != null)
+					hits++;
+			}
+			diff = System.nanoTime() - begin;
+			System.out.println("CommandTable      " + (diff / loops) + "ns/op hits=" + hits);
+		}
+	}
+}
@@ -0,0 +1,161 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.javastack.chainmq.sandbox;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+
+import org.javastack.chainmq.Job;
+import org.javastack.chainmq.JobHeap;
+import org.javastack.chainmq.LongJobMap;
+
+/**
+ * Retained heap per job: Job object, on-heap body, id index and ready heap, against the bytes of
+ * the declared fields and a slot-indexed column table holding the same metadata (primitive
+ * columns, state as byte, one timestamp shared by delay/TTR and timer, int links for the timer)
+ *
+ * Usage: JobFootprintBenchmark [jobs] [body-size]
+ *
+ * @author Guillermo Grandes / guillermo.grandes[at]gmail.com
+ */
+public class JobFootprintBenchmark {
+	// Kept in fields, locals can be collected early by compiled code
+	private static Job[] offHeapJobs;
+	private static Job[] onHeapJobs;
+	private static LongJobMap index;
+	private static JobHeap heap;
+	private static SlotColumns columns;
+
+	public static void main(final String[] args) throws Throwable {
+		final int size = (args.length > 0 ? Integer.parseInt(args[0]) : 1000000);
+		final int bodySize = (args.length > 1 ? Integer.parseInt(args[1]) : 16);
+		final int fields = fieldBytes(Job.class);
+		for (int round = 0; round < 3; round++) {
+			offHeapJobs = new Job[size];
+			onHeapJobs = new Job[size];
+			// Job only (body off-heap)
+			long mem = usedMemory();
+			for (int i = 0; i < size; i++) {
+				offHeapJobs[i] = new Job(null, i + 1, 0, 0, 60, null, i, bodySize);
+			}
+			final long jobBytes = usedMemory() - mem;
+			// Job with body on heap
+			mem = usedMemory();
+			for (int i = 0; i < size; i++) {
+				onHeapJobs[i] = new Job(null, i + 1, 0, 0, 60, new byte[bodySize]);
+			}
+			final long bodyJobBytes = usedMemory() - mem;
+			// Id index
+			mem = usedMemory();
+			index = new LongJobMap();
+			for (int i = 0; i < size; i++) {
+				index.putJob(onHeapJobs[i].id, onHeapJobs[i]);
+			}
+			final long indexBytes = usedMemory() - mem;
+			// Ready heap
+			mem = usedMemory();
+			heap = new JobHeap(Job.priorityComparator);
+			for (int i = 0; i < size; i++) {
+				heap.add(onHeapJobs[i]);
+			}
+			final long heapBytes = usedMemory() - mem;
+			// Same metadata as columns by slot (view objects not retained)
+			mem = usedMemory();
+			columns = new SlotColumns(size);
+			final long columnBytes = usedMemory() - mem;
+			final long total = bodyJobBytes + indexBytes + heapBytes;
+			final long columnTotal = columnBytes + (bodyJobBytes - jobBytes) + indexBytes + heapBytes;
+			System.out.println("jobs=" + size + " body=" + bodySize + " job=" + (jobBytes / size)
+					+ "bytes/job (fields=" + fields + " header+padding=" + ((jobBytes / size) - fields)
+					+ ") job+body=" + (bodyJobBytes / size) + " index=" + (indexBytes / size) + " heap="
+					+ (heapBytes / size) + " total=" + (total / size) + "bytes/job columns="
+					+ (columnBytes / size) + " columns-total=" + (columnTotal / size) + "bytes/job");
+			offHeapJobs = null;
+			onHeapJobs = null;
+			index = null;
+			heap = null;
+			columns = null;
+		}
+	}
+
+	/**
+	 * Metadata of Job as primitive columns indexed by slot
+	 */
+	private static final class SlotColumns {
+		final long[] id, created, deadline, bodyRef; // deadline: readyTime or reserveExpire
+		final int[] prio, ttr, tube, client, heapIndex, binlogFile, bodyLength;
+		final int[] timerBucket, timerPrev, timerNext;
+		final int[] reserves, timeouts, releases, buries, kicks;
+		final byte[] state;
+		final byte[][] body;
+
+		SlotColumns(final int slots) {
+			id = new long[slots];
+			created = new long[slots];
+			deadline = new long[slots];
+			bodyRef = new long[slots];
+			prio = new int[slots];
+			ttr = new int[slots];
+			tube = new int[slots];
+			client = new int[slots];
+			heapIndex = new int[slots];
+			binlogFile = new int[slots];
+			bodyLength = new int[slots];
+			timerBucket = new int[slots];
+			timerPrev = new int[slots];
+			timerNext = new int[slots];
+			reserves = new int[slots];
+			timeouts = new int[slots];
+			releases = new int[slots];
+			buries = new int[slots];
+			kicks = new int[slots];
+			state = new byte[slots];
+			body = new byte[slots][];
+		}
+	}
+
+	/**
+	 * Bytes of instance fields of class and superclasses (references as 4 bytes)
+	 */
+	private static int fieldBytes(Class<?> clazz) {
+		int bytes = 0;
+		while (clazz != null) {
+			for (final Field f : clazz.getDeclaredFields()) {
+				if (Modifier.isStatic(f.getModifiers()))
+					continue;
+				final Class<?> t = f.getType();
+				if ((t == long.class) || (t == double.class)) {
+					bytes += 8;
+				} else if ((t == int.class) || (t == float.class) || !t.isPrimitive()) {
+					bytes += 4;
+				} else if ((t == short.class) || (t == char.class)) {
+					bytes += 2;
+				} else {
+					bytes += 1;
+				}
+			}
+			clazz = clazz.getSuperclass();
+		}
+		return bytes;
+	}
+
+	private static long usedMemory() {
+		final Runtime rt = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		return rt.totalMemory() - rt.freeMemory();
+	}
+}
@@ -0,0 +1,110 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.javastack.chainmq.sandbox;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.javastack.chainmq.JobIdAllocator;
+import org.javastack.chainmq.SequenceNumber;
+
+/**
+ * Job id allocation from N threads: shared counter (JobIdAllocator, one atomic increment per id)
+ * vs per-thread blocks leased with one getAndAdd(BLOCK)
+ *
+ * Usage: JobIdBenchmark [max-threads] [ids-per-thread] [block]
+ *
+ * @author Guillermo Grandes / guillermo.grandes[at]gmail.com
+ */
+public class JobIdBenchmark {
+	public static void main(final String[] args) throws Throwable {
+		final int maxThreads = (args.length > 0 ? Integer.parseInt(args[0]) : 8);
+		final int ids = (args.length > 1 ? Integer.parseInt(args[1]) : 20000000);
+		final int block = (args.length > 2 ? Integer.parseInt(args[2]) : 64);
+		System.out.println("cpus=" + Runtime.getRuntime().availableProcessors() + " block=" + block);
+		for (int round = 0; round < 3; round++) {
+			for (int threads = 1; threads <= maxThreads; threads <<= 1) {
+				// Shared counter
+				final JobIdAllocator shared = new JobIdAllocator(new SequenceNumber());
+				long nanos = run(threads, new Runnable() {
+					@Override
+					public void run() {
+						long sum = 0;
+						for (int i = 0; i < ids; i++) {
+							sum += shared.nextId();
+						}
+						sink(sum);
+					}
+				});
+				print("shared", threads, ids, nanos);
+				// Per-thread blocks
+				final AtomicLong counter = new AtomicLong();
+				nanos = run(threads, new Runnable() {
+					@Override
+					public void run() {
+						long sum = 0;
+						long next = 0, end = 0;
+						for (int i = 0; i < ids; i++) {
+							if (next == end) {
+								next = counter.getAndAdd(block) + 1;
+								end = next + block;
+							}
+							sum += next++;
+						}
+						sink(sum);
+					}
+				});
+				print("block", threads, ids, nanos);
+			}
+		}
+	}
+
+	private static volatile long sink;
+
+	private static void sink(final long sum) {
+		sink += sum;
+	}
+
+	private static long run(final int threads, final Runnable task) throws InterruptedException {
+		final CountDownLatch start = new CountDownLatch(1);
+		final Thread[] ts = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			ts[i] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					task.run();
+				}
+			};
+			ts[i].start();
+		}
+		final long begin = System.nanoTime();
+		start.countDown();
+		for (final Thread t : ts) {
+			t.join();
+		}
+		return System.nanoTime() - begin;
+	}
+
+	private static void print(final String name, final int threads, final int ids, final long nanos) {
+		final long total = ((long) threads * ids);
+		System.out.println(name + " threads=" + threads + " " + (nanos * 1000 / total) / 1000.0
+				+ "ns/id " + (total * 1000 / nanos) + "Mids/s");
+	}
+}
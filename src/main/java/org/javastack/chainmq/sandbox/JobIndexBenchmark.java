@@ -0,0 +1,106 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.javastack.chainmq.sandbox;
+
+import java.util.HashMap;
+import java.util.Random;
+
+import org.javastack.chainmq.Job;
+import org.javastack.chainmq.LongJobMap;
+
+/**
+ * Job index: HashMap&lt;Long, Job&gt; vs LongJobMap (index bytes per job, put/get/remove latency)
+ *
+ * Usage: JobIndexBenchmark [jobs] [lookups]
+ *
+ * @author Guillermo Grandes / guillermo.grandes[at]gmail.com
+ */
+public class JobIndexBenchmark {
+	public static void main(final String[] args) throws Throwable {
+		final int size = (args.length > 0 ? Integer.parseInt(args[0]) : 2000000);
+		final int lookups = (args.length > 1 ? Integer.parseInt(args[1]) : 5000000);
+		final Job[] jobs = new Job[size];
+		for (int i = 0; i < size; i++) {
+			jobs[i] = new Job(null, i + 1, 0, 0, 60, null);
+		}
+		final Random r = new Random(42);
+		final long[] keys = new long[lookups];
+		for (int i = 0; i < lookups; i++) {
+			keys[i] = r.nextInt(size) + 1;
+		}
+		for (int round = 0; round < 3; round++) {
+			// HashMap<Long, Job>
+			long mem = usedMemory();
+			HashMap<Long, Job> map = new HashMap<Long, Job>();
+			long begin = System.nanoTime();
+			for (int i = 0; i < size; i++) {
+				map.put(Long.valueOf(jobs[i].id), jobs[i]);
+			}
+			long put = System.nanoTime() - begin;
+			final long mapBytes = usedMemory() - mem;
+			begin = System.nanoTime();
+			long hits = 0;
+			for (int i = 0; i < lookups; i++) {
+				if (map.get(Long.valueOf(keys[i])) != null)
+					hits++;
+			}
+			long get = System.nanoTime() - begin;
+			begin = System.nanoTime();
+			for (int i = 0; i < size; i++) {
+				map.remove(Long.valueOf(jobs[i].id));
+			}
+			long remove = System.nanoTime() - begin;
+			print("HashMap<Long>", size, mapBytes, put / size, get / lookups, remove / size, hits);
+			map = null;
+			// LongJobMap
+			mem = usedMemory();
+			LongJobMap index = new LongJobMap();
+			begin = System.nanoTime();
+			for (int i = 0; i < size; i++) {
+				index.putJob(jobs[i].id, jobs[i]);
+			}
+			put = System.nanoTime() - begin;
+			final long indexBytes = usedMemory() - mem;
+			begin = System.nanoTime();
+			hits = 0;
+			for (int i = 0; i < lookups; i++) {
+				if (index.getJob(keys[i]) != null)
+					hits++;
+			}
+			get = System.nanoTime() - begin;
+			begin = System.nanoTime();
+			for (int i = 0; i < size; i++) {
+				index.removeJob(jobs[i].id);
+			}
+			remove = System.nanoTime() - begin;
+			print("LongJobMap", size, indexBytes, put / size, get / lookups, remove / size, hits);
+			index = null;
+		}
+	}
+
+	private static long usedMemory() {
+		final Runtime rt = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		return rt.totalMemory() - rt.freeMemory();
+	}
+
+	private static void print(final String name, final int size, final long bytes, final long putNanos,
+			final long getNanos, final long removeNanos, final long hits) {
+		System.out.println(name + " jobs=" + size + " index=" + (bytes / size) + "bytes/job put=" + putNanos
+				+ "ns/op get=" + getNanos + "ns/op remove=" + removeNanos + "ns/op hits=" + hits);
+	}
+}
@@ -0,0 +1,127 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.javastack.chainmq.sandbox;
+
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.javastack.chainmq.Job;
+import org.javastack.chainmq.JobHeap;
+import org.javastack.chainmq.ReadyQueue;
+
+/**
+ * Ready queue: TreeSet vs 4-ary JobHeap vs ReadyQueue (fill, reserve/release churn, delete by job)
+ *
+ * Usage: ReadyQueueBenchmark [readyJobs] [ops] [priorities] (10^7 jobs needs about -Xmx4g)
+ *
+ * @author Guillermo Grandes / guillermo.grandes[at]gmail.com
+ */
+public class ReadyQueueBenchmark {
+	public static void main(final String[] args) throws Throwable {
+		final int size = (args.length > 0 ? Integer.parseInt(args[0]) : 1000000);
+		final int ops = (args.length > 1 ? Integer.parseInt(args[1]) : 2000000);
+		final int priorities = (args.length > 2 ? Integer.parseInt(args[2]) : 4096);
+		final Random r = new Random(42);
+		final Job[] jobs = new Job[size];
+		for (int i = 0; i < size; i++) {
+			jobs[i] = new Job(null, i + 1, r.nextInt(priorities), 0, 60, null);
+		}
+		final int[] prios = new int[ops];
+		for (int i = 0; i < ops; i++) {
+			prios[i] = r.nextInt(priorities);
+		}
+		final int[] victims = new int[size >>> 2];
+		for (int i = 0; i < victims.length; i++) {
+			victims[i] = r.nextInt(size);
+		}
+		for (int round = 0; round < 3; round++) {
+			System.gc();
+			// TreeSet<Job>
+			final TreeSet<Job> set = new TreeSet<Job>(Job.priorityComparator);
+			long begin = System.nanoTime();
+			for (int i = 0; i < size; i++) {
+				set.add(jobs[i]);
+			}
+			long fill = System.nanoTime() - begin;
+			begin = System.nanoTime();
+			for (int i = 0; i < ops; i++) {
+				final Job job = set.pollFirst();
+				job.prio = prios[i]; // release with new priority
+				set.add(job);
+			}
+			long churn = System.nanoTime() - begin;
+			begin = System.nanoTime();
+			for (int i = 0; i < victims.length; i++) {
+				set.remove(jobs[victims[i]]);
+			}
+			long remove = System.nanoTime() - begin;
+			print("TreeSet", size, fill, churn / ops, remove / victims.length);
+			set.clear();
+			System.gc();
+			// JobHeap
+			final JobHeap heap = new JobHeap(Job.priorityComparator);
+			begin = System.nanoTime();
+			for (int i = 0; i < size; i++) {
+				heap.add(jobs[i]);
+			}
+			fill = System.nanoTime() - begin;
+			begin = System.nanoTime();
+			for (int i = 0; i < ops; i++) {
+				final Job job = heap.poll();
+				job.prio = prios[i]; // release with new priority
+				heap.add(job);
+			}
+			churn = System.nanoTime() - begin;
+			begin = System.nanoTime();
+			for (int i = 0; i < victims.length; i++) {
+				heap.remove(jobs[victims[i]]);
+			}
+			remove = System.nanoTime() - begin;
+			print("JobHeap", size, fill, churn / ops, remove / victims.length);
+			while (heap.poll() != null)
+				;
+			System.gc();
+			// ReadyQueue (buckets while few priorities)
+			final ReadyQueue queue = new ReadyQueue();
+			begin = System.nanoTime();
+			for (int i = 0; i < size; i++) {
+				queue.add(jobs[i]);
+			}
+			fill = System.nanoTime() - begin;
+			begin = System.nanoTime();
+			for (int i = 0; i < ops; i++) {
+				final Job job = queue.poll();
+				job.prio = prios[i]; // release with new priority
+				queue.add(job);
+			}
+			churn = System.nanoTime() - begin;
+			begin = System.nanoTime();
+			for (int i = 0; i < victims.length; i++) {
+				queue.remove(jobs[victims[i]]);
+			}
+			remove = System.nanoTime() - begin;
+			print(queue.isHeapMode() ? "ReadyQueue(heap)" : "ReadyQueue(buckets)", size, fill, churn / ops,
+					remove / victims.length);
+			while (queue.poll() != null)
+				;
+		}
+	}
+
+	private static void print(final String name, final int size, final long fillNanos, final long churnNanos,
+			final long removeNanos) {
+		System.out.println(name + " size=" + size + " fill=" + (fillNanos / 1000000) + "ms poll+add="
+				+ churnNanos + "ns/op remove=" + removeNanos + "ns/op");
+	}
+}
@@ -0,0 +1,158 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.javastack.chainmq.sandbox;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.javastack.chainmq.Server;
+
+/**
+ * Throughput vs number of event loops (put/reserve/delete mix)
+ *
+ * <pre>
+ * Usage: ThroughputBenchmark [maxLoops] [clients] [seconds] [batch]
+ * </pre>
+ *
+ * @author Guillermo Grandes / guillermo.grandes[at]gmail.com
+ */
+public class ThroughputBenchmark {
+	private static final byte[] CRLF = "\r\n".getBytes();
+	private static final byte[] BODY = "0123456789abcdef0123456789abcdef".getBytes();
+
+	public static void main(final String[] args) throws Throwable {
+		final int maxLoops = (args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime()
+				.availableProcessors());
+		final int clients = (args.length > 1 ? Integer.parseInt(args[1]) : 64);
+		final int seconds = (args.length > 2 ? Integer.parseInt(args[2]) : 10);
+		final int batch = (args.length > 3 ? Integer.parseInt(args[3]) : 16);
+		int port = 21300;
+		for (int loops = 1; loops <= maxLoops; loops <<= 1) {
+			final Server srv = new Server();
+			srv.setListenAddress(InetAddress.getByName("127.0.0.1"));
+			srv.setListenPort(++port);
+			srv.setEventLoops(loops);
+			final Thread t = new Thread(srv);
+			t.setDaemon(true);
+			t.start();
+			Thread.sleep(500);
+			final long ops = run(port, "run" + loops, clients, seconds, batch);
+			System.out.println("loops=" + loops + " clients=" + clients + " batch=" + batch + " ops="
+					+ ops + " ops/s=" + (ops / seconds));
+		}
+		System.exit(0);
+	}
+
+	private static long run(final int port, final String prefix, final int clients, final int seconds,
+			final int batch) throws InterruptedException {
+		final AtomicLong ops = new AtomicLong();
+		final CountDownLatch ready = new CountDownLatch(clients);
+		final CountDownLatch done = new CountDownLatch(clients);
+		final long[] deadline = new long[1];
+		final Object startLock = new Object();
+		for (int i = 0; i < clients; i++) {
+			final String tube = prefix + "-" + i;
+			final Thread t = new Thread() {
+				@Override
+				public void run() {
+					try {
+						final Socket sock = new Socket("127.0.0.1", port);
+						sock.setTcpNoDelay(true);
+						final InputStream is = new BufferedInputStream(sock.getInputStream());
+						final OutputStream os = new BufferedOutputStream(sock.getOutputStream());
+						command(os, "use " + tube);
+						command(os, "watch " + tube);
+						command(os, "ignore default");
+						os.flush();
+						readLine(is);
+						readLine(is);
+						readLine(is);
+						ready.countDown();
+						synchronized (startLock) {
+							while (deadline[0] == 0)
+								startLock.wait();
+						}
+						final long[] ids = new long[batch];
+						long count = 0;
+						while (System.currentTimeMillis() < deadline[0]) {
+							for (int j = 0; j < batch; j++) {
+								os.write(("put 0 0 60 " + BODY.length).getBytes());
+								os.write(CRLF);
+								os.write(BODY);
+								os.write(CRLF);
+							}
+							os.flush();
+							for (int j = 0; j < batch; j++)
+								readLine(is);
+							for (int j = 0; j < batch; j++)
+								command(os, "reserve");
+							os.flush();
+							for (int j = 0; j < batch; j++) {
+								final String res = readLine(is);
+								ids[j] = Long.parseLong(res.split(" ")[1]);
+								readLine(is); // body
+							}
+							for (int j = 0; j < batch; j++)
+								command(os, "delete " + ids[j]);
+							os.flush();
+							for (int j = 0; j < batch; j++)
+								readLine(is);
+							count += batch * 3;
+						}
+						ops.addAndGet(count);
+						sock.close();
+					} catch (Exception e) {
+						e.printStackTrace(System.out);
+					} finally {
+						done.countDown();
+					}
+				}
+			};
+			t.start();
+		}
+		ready.await();
+		synchronized (startLock) {
+			deadline[0] = System.currentTimeMillis() + (seconds * 1000L);
+			startLock.notifyAll();
+		}
+		done.await();
+		return ops.get();
+	}
+
+	private static void command(final OutputStream os, final String cmd) throws IOException {
+		os.write(cmd.getBytes());
+		os.write(CRLF);
+	}
+
+	private static String readLine(final InputStream is) throws IOException {
+		final StringBuilder sb = new StringBuilder();
+		int b;
+		while ((b = is.read()) != -1) {
+			if (b == '\r') {
+				is.read(); // \n
+				break;
+			}
+			sb.append((char) b);
+		}
+		return sb.toString();
+	}
+}
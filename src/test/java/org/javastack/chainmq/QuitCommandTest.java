@@ -0,0 +1,113 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package org.javastack.chainmq;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import junit.framework.TestCase;
+
+/**
+ * Pipelined commands followed by quit: every response must be written before close
+ * 
+ * @author Guillermo Grandes / guillermo.grandes[at]gmail.com
+ */
+public class QuitCommandTest extends TestCase {
+	private static int port = -1;
+
+	@Override
+	protected void setUp() throws Exception {
+		synchronized (QuitCommandTest.class) {
+			if (port < 0)
+				port = startServer();
+		}
+	}
+
+	public void testPipelinedQuit() throws Exception {
+		final String res = request("put 0 0 60 1\r\na\r\n" //
+				+ "put 0 0 60 1\r\nb\r\n" //
+				+ "use other\r\n" //
+				+ "quit\r\n" //
+				+ "put 0 0 60 1\r\nc\r\n");
+		final String[] lines = res.split("\r\n");
+		assertEquals(res, 3, lines.length);
+		assertTrue(res, lines[0].startsWith("INSERTED "));
+		assertTrue(res, lines[1].startsWith("INSERTED "));
+		assertEquals("USING other", lines[2]);
+	}
+
+	public void testQuit() throws Exception {
+		assertEquals("", request("quit\r\n"));
+	}
+
+	/**
+	 * Send whole request in one write and read until server closes connection
+	 */
+	private static String request(final String req) throws IOException {
+		final Socket sock = connect();
+		try {
+			sock.setSoTimeout(5000);
+			final OutputStream os = sock.getOutputStream();
+			os.write(req.getBytes("ISO-8859-1"));
+			os.flush();
+			final InputStream is = sock.getInputStream();
+			final ByteArrayOutputStream res = new ByteArrayOutputStream();
+			final byte[] buf = new byte[4096];
+			int len = 0;
+			while ((len = is.read(buf)) >= 0) {
+				res.write(buf, 0, len);
+			}
+			return res.toString("ISO-8859-1");
+		} finally {
+			sock.close();
+		}
+	}
+
+	private static Socket connect() throws IOException {
+		final InetAddress addr = InetAddress.getByName("127.0.0.1");
+		for (int i = 0;; i++) {
+			try {
+				return new Socket(addr, port);
+			} catch (IOException e) {
+				if (i >= 50)
+					throw e;
+				try {
+					Thread.sleep(100);
+				} catch (InterruptedException ie) {
+					throw e;
+				}
+			}
+		}
+	}
+
+	private static int startServer() throws IOException {
+		final ServerSocket probe = new ServerSocket(0);
+		final int freePort = probe.getLocalPort();
+		probe.close();
+		final Server srv = new Server();
+		srv.setListenAddress(InetAddress.getByName("127.0.0.1"));
+		srv.setListenPort(freePort);
+		srv.setEventLoops(2);
+		final Thread t = new Thread(srv, "Server");
+		t.setDaemon(true);
+		t.start();
+		return freePort;
+	}
+}